@@ -0,0 +1,59 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks; runs all benchmarks at 1, 4 and 16 threads with the GC profiler, and
+ * keeps the results as JSON, so the events per second and the bytes allocated per
+ * event (gc.alloc.rate.norm) can be compared between changes
+ */
+public class Benchmarks
+{
+   /** The numbers of threads */
+   private static final int[] THREADS = {1, 4, 16};
+
+   /**
+    * Main
+    * @param args The directory of the results, and optionally a benchmark pattern
+    */
+   public static void main(String[] args)
+   {
+      try
+      {
+         Path results = Paths.get(args.length > 0 ? args[0] : "results");
+         String include = args.length > 1 ? args[1] : ".*Benchmark.*";
+
+         Files.createDirectories(results);
+
+         for (int threads : THREADS)
+         {
+            Options options = new OptionsBuilder()
+               .include(include)
+               .threads(threads)
+               .addProfiler(GCProfiler.class)
+               .resultFormat(ResultFormatType.JSON)
+               .result(results.resolve("jmh-" + threads + ".json").toString())
+               .build();
+
+            new Runner(options).run();
+         }
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
+   }
+}
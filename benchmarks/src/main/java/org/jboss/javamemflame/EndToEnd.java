@@ -0,0 +1,234 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * End to end; runs Main over .jfr files in a JVM of its own, and reports the wall time,
+ * the events per second, the peak RSS, the peak heap and the size of the output. The
+ * number of events of a file is read from the file.properties of the Generator. Each
+ * run is appended to results/e2e.csv
+ */
+public class EndToEnd
+{
+   /** The number of milliseconds between the samples of the RSS */
+   private static final long SAMPLE_INTERVAL = 50;
+
+   /** Used heap before a collection, like 24M->3M(256M) */
+   private static final Pattern GC = Pattern.compile("([0-9]+)M->[0-9]+M\\([0-9]+M\\)");
+
+   /** Used heap at exit, like heap total 262144K, used 12345K */
+   private static final Pattern EXIT = Pattern.compile("heap +total [0-9]+K, used ([0-9]+)K");
+
+   /**
+    * Usage
+    */
+   private static void usage()
+   {
+      System.out.println("Usage: java -cp benchmarks.jar org.jboss.javamemflame.EndToEnd <javamemflame.jar> [-J<jvm option>]* [options] <file.jfr>+");
+      System.out.println("");
+      System.out.println("The options are passed to javamemflame, like -t 8 or -o txt");
+   }
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      try
+      {
+         if (args.length < 2)
+         {
+            usage();
+            return;
+         }
+
+         Path jar = Paths.get(args[0]).toAbsolutePath();
+         Path work = Files.createTempDirectory("javamemflame-e2e");
+         Path gc = work.resolve("gc.log");
+
+         List<String> command = new ArrayList<>();
+         command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+         command.add("-Xlog:gc,gc+heap+exit:file=" + gc);
+
+         List<String> options = new ArrayList<>();
+         long input = 0;
+         long events = 0;
+
+         for (int i = 1; i < args.length; i++)
+         {
+            if (args[i].startsWith("-J"))
+            {
+               command.add(args[i].substring(2));
+            }
+            else if (args[i].endsWith(".jfr") || args[i].endsWith(".jmf"))
+            {
+               Path p = Paths.get(args[i]).toAbsolutePath();
+               options.add(p.toString());
+               input += Files.size(p);
+               events += events(p);
+            }
+            else
+            {
+               options.add(args[i]);
+            }
+         }
+
+         command.add("-cp");
+         command.add(jar.toString());
+         command.add("org.jboss.javamemflame.Main");
+         command.addAll(options);
+
+         long start = System.nanoTime();
+         Process process = new ProcessBuilder(command).directory(work.toFile()).inheritIO().start();
+
+         long rss = -1;
+         while (!process.waitFor(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS))
+         {
+            rss = Math.max(rss, rss(process.pid()));
+         }
+
+         long wall = (System.nanoTime() - start) / 1000000L;
+         long heap = heap(gc);
+         long output = 0;
+
+         try (Stream<Path> s = Files.list(work))
+         {
+            for (Path p : (Iterable<Path>)s::iterator)
+            {
+               if (!p.equals(gc))
+                  output += Files.size(p);
+            }
+         }
+
+         System.out.println("");
+         System.out.println("Exit code  : " + process.exitValue());
+         System.out.println("Input      : " + input + " bytes");
+         System.out.println("Events     : " + (events > 0 ? Long.toString(events) : "unknown"));
+         System.out.println("Wall time  : " + wall + " ms");
+         System.out.println("Events/sec : " + (events > 0 ? Long.toString(events * 1000 / Math.max(wall, 1)) : "unknown"));
+         System.out.println("MB/sec     : " + String.format("%.1f", input / 1048576.0 / Math.max(wall, 1) * 1000));
+         System.out.println("Peak RSS   : " + (rss >= 0 ? rss / 1024 + " MB" : "unknown"));
+         System.out.println("Peak heap  : " + (heap >= 0 ? heap + " MB" : "unknown"));
+         System.out.println("Output     : " + output + " bytes");
+
+         Path results = Paths.get("results");
+         Files.createDirectories(results);
+         Path csv = results.resolve("e2e.csv");
+         boolean header = !Files.exists(csv);
+
+         try (BufferedWriter bw = Files.newBufferedWriter(csv, StandardCharsets.UTF_8,
+                                                          StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+         {
+            if (header)
+            {
+               bw.write("time,options,input,events,wall_ms,events_per_sec,peak_rss_kb,peak_heap_mb,output");
+               bw.newLine();
+            }
+
+            bw.write(LocalDateTime.now() + ",\"" + String.join(" ", options) + "\"," + input + "," + events + "," +
+                     wall + "," + (events * 1000 / Math.max(wall, 1)) + "," + rss + "," + heap + "," + output);
+            bw.newLine();
+         }
+
+         try (Stream<Path> s = Files.walk(work))
+         {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+         }
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Get the number of events of a file from the properties of the Generator
+    * @param p The path of the file
+    * @return The number of events; 0 if unknown
+    */
+   private static long events(Path p) throws Exception
+   {
+      Path properties = Paths.get(p.toString() + ".properties");
+      if (!Files.exists(properties))
+         return 0;
+
+      Properties props = new Properties();
+      try (InputStream is = Files.newInputStream(properties))
+      {
+         props.load(is);
+      }
+
+      return Long.valueOf(props.getProperty("events", "0"));
+   }
+
+   /**
+    * Get the peak RSS of a process
+    * @param pid The process id
+    * @return The number of kB; -1 if unknown
+    */
+   private static long rss(long pid)
+   {
+      try
+      {
+         for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status")))
+         {
+            if (line.startsWith("VmHWM:"))
+               return Long.valueOf(line.substring(6).replace("kB", "").trim());
+         }
+      }
+      catch (Exception e)
+      {
+         // Not Linux, or the process has ended
+      }
+
+      return -1;
+   }
+
+   /**
+    * Get the peak heap from a GC log; the largest used heap before a collection or at exit
+    * @param gc The GC log
+    * @return The number of MB; -1 if unknown
+    */
+   private static long heap(Path gc) throws Exception
+   {
+      long peak = -1;
+
+      if (!Files.exists(gc))
+         return peak;
+
+      for (String line : Files.readAllLines(gc))
+      {
+         Matcher m = GC.matcher(line);
+         if (m.find())
+            peak = Math.max(peak, Long.valueOf(m.group(1)));
+
+         m = EXIT.matcher(line);
+         if (m.find())
+            peak = Math.max(peak, Long.valueOf(m.group(1)) / 1024);
+      }
+
+      return peak;
+   }
+}
@@ -0,0 +1,81 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Events; synthetic allocation events from the Generator, with a large number of
+ * different stacks. The events are kept in memory, so the benchmarks don't include
+ * the decoding of the recording
+ */
+@State(Scope.Benchmark)
+public class Events
+{
+   /** The number of events in an operation */
+   static final int EVENTS = 65536;
+
+   /** The number of events in a batch */
+   static final int BATCH_SIZE = 1024;
+
+   /** The number of distinct stacks */
+   private static final int STACKS = 4096;
+
+   /** The depth of the stacks */
+   private static final int DEPTH = 24;
+
+   /** The number of allocated classes */
+   private static final int CLASSES = 16;
+
+   List<RecordedEvent> events;
+   List<List<RecordedEvent>> batches;
+   FrameTable ft;
+
+   /**
+    * Generate the events
+    */
+   @Setup
+   public void setup() throws Exception
+   {
+      Path p = Files.createTempFile("javamemflame-benchmark", ".jfr");
+
+      try
+      {
+         Generator g = new Generator(STACKS, DEPTH, CLASSES, 42);
+         g.generate(p, EVENTS, 1);
+
+         events = new ArrayList<>(EVENTS);
+         for (RecordedEvent re : RecordingFile.readAllEvents(p))
+         {
+            if (re.getEventType().getName().startsWith("jdk.ObjectAllocation"))
+               events.add(re);
+         }
+      }
+      finally
+      {
+         Files.deleteIfExists(p);
+      }
+
+      if (events.size() != EVENTS)
+         throw new IllegalStateException("Generated " + events.size() + " events");
+
+      batches = new ArrayList<>();
+      for (int i = 0; i < EVENTS; i += BATCH_SIZE)
+      {
+         batches.add(events.subList(i, Math.min(i + BATCH_SIZE, EVENTS)));
+      }
+
+      ft = new FrameTable(null);
+   }
+}
@@ -0,0 +1,140 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Frame interning; the lookups of the ids of methods, detailed frames and allocated
+ * classes in a frame table shared by all threads. A score is the number of frames
+ * per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameTableBenchmark
+{
+   /** The number of classes */
+   private static final int CLASSES = 256;
+
+   /** The number of methods per class */
+   private static final int METHODS = 16;
+
+   /** The number of frames in an operation */
+   private static final int FRAMES = CLASSES * METHODS;
+
+   FrameTable ft;
+   String[] classNames;
+   String[] methodNames;
+   String[] allocations;
+
+   /**
+    * Create the names, and intern them once
+    */
+   @Setup
+   public void setup()
+   {
+      ft = new FrameTable(null);
+      classNames = new String[CLASSES];
+      methodNames = new String[METHODS];
+      allocations = new String[CLASSES];
+
+      for (int i = 0; i < CLASSES; i++)
+      {
+         classNames[i] = "org.example.package" + (i % 8) + ".Class" + i;
+         allocations[i] = "[Lorg.example.package" + (i % 8) + ".Class" + i + ";";
+      }
+
+      for (int i = 0; i < METHODS; i++)
+      {
+         methodNames[i] = "method" + i;
+      }
+
+      for (int i = 0; i < CLASSES; i++)
+      {
+         ft.allocation(allocations[i]);
+         for (int j = 0; j < METHODS; j++)
+         {
+            ft.method(classNames[i], methodNames[j]);
+         }
+      }
+   }
+
+   /**
+    * The position of a thread in the names, so the threads don't move in lockstep
+    */
+   @State(Scope.Thread)
+   public static class Position
+   {
+      private static final AtomicInteger THREADS = new AtomicInteger();
+
+      int offset = THREADS.getAndIncrement() * 97;
+   }
+
+   /**
+    * Look up methods
+    * @param position The position
+    * @param bh The black hole
+    */
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public void method(Position position, Blackhole bh)
+   {
+      for (int i = 0; i < FRAMES; i++)
+      {
+         int n = (i + position.offset) % FRAMES;
+         bh.consume(ft.method(classNames[n / METHODS], methodNames[n % METHODS]));
+      }
+   }
+
+   /**
+    * Look up methods with line numbers and frame types
+    * @param position The position
+    * @param bh The black hole
+    */
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public void frame(Position position, Blackhole bh)
+   {
+      for (int i = 0; i < FRAMES; i++)
+      {
+         int n = (i + position.offset) % FRAMES;
+         int method = ft.method(classNames[n / METHODS], methodNames[n % METHODS]);
+         bh.consume(ft.frame(method, n & 63, -1, FrameTable.TYPE_JIT));
+      }
+   }
+
+   /**
+    * Look up allocated classes
+    * @param position The position
+    * @param bh The black hole
+    */
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public void allocation(Position position, Blackhole bh)
+   {
+      for (int i = 0; i < FRAMES; i++)
+      {
+         bh.consume(ft.allocation(allocations[(i + position.offset) % CLASSES]));
+      }
+   }
+}
@@ -0,0 +1,396 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * Generator; writes a .jfr file of synthetic allocation events. The events have the
+ * name and the fields of the allocation events of the JVM, and their stack traces come
+ * from a chain of calls through a number of methods, so the number of events, the
+ * number of distinct stacks, the stack depth, the mix of classes and the number of
+ * chunks are all known. The parameters are written to file.properties as well, with
+ * the number of distinct stacks the events ended up with
+ */
+public class Generator
+{
+   /** The number of methods a stack is made of */
+   private static final int METHODS = 16;
+
+   /** The classes of the class mix, which are used as arrays of up to 3 dimensions too */
+   private static final Class<?>[] CLASSES = {
+      byte.class, char.class, int.class, long.class, Object.class, String.class,
+      java.util.HashMap.class, java.util.ArrayList.class, java.util.LinkedList.class,
+      java.util.TreeMap.class, java.lang.StringBuilder.class, java.lang.Integer.class,
+      java.lang.Long.class, java.nio.ByteBuffer.class, java.util.concurrent.ConcurrentHashMap.class,
+      java.math.BigDecimal.class
+   };
+
+   /**
+    * The synthetic allocation event
+    */
+   @Name("jdk.ObjectAllocationInNewTLAB")
+   @StackTrace(true)
+   static class Allocation extends Event
+   {
+      Class<?> objectClass;
+      long allocationSize;
+      long tlabSize;
+   }
+
+   private int stacks;
+   private int depth;
+   private Class<?>[] classes;
+   private BitSet[] used;
+   private Random random;
+
+   /**
+    * Constructor
+    * @param stacks The number of stack ids
+    * @param depth The depth of the stacks
+    * @param classes The number of allocated classes
+    * @param seed The seed
+    */
+   Generator(int stacks, int depth, int classes, long seed)
+   {
+      this.stacks = stacks;
+      this.depth = depth;
+      this.classes = new Class<?>[Math.min(Math.max(classes, 1), CLASSES.length * 4)];
+      this.used = new BitSet[this.classes.length];
+      this.random = new Random(seed);
+
+      for (int i = 0; i < this.classes.length; i++)
+      {
+         Class<?> c = CLASSES[i % CLASSES.length];
+         int dimensions = i / CLASSES.length + (c.isPrimitive() ? 1 : 0);
+         for (int d = 0; d < dimensions; d++)
+         {
+            c = Array.newInstance(c, 0).getClass();
+         }
+         this.classes[i] = c;
+         this.used[i] = new BitSet();
+      }
+   }
+
+   /**
+    * Write a .jfr file
+    * @param path The path of the file
+    * @param events The number of events
+    * @param chunks The number of chunks; a chunk is split further when it gets too large
+    */
+   void generate(Path path, long events, int chunks) throws Exception
+   {
+      try (FileChannel out = FileChannel.open(path,
+                                              StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         for (int c = 0; c < chunks; c++)
+         {
+            long n = events / chunks + (c < events % chunks ? 1 : 0);
+            Path p = Files.createTempFile("javamemflame-generator", ".jfr");
+
+            try
+            {
+               try (Recording r = new Recording())
+               {
+                  r.enable(Allocation.class);
+                  r.start();
+
+                  for (long i = 0; i < n; i++)
+                  {
+                     // Skewed, so a few stacks and classes are hot, like in a real application
+                     double s = random.nextDouble();
+                     double t = random.nextDouble();
+                     int stack = (int)(stacks * s * s * s);
+                     int type = (int)(classes.length * t * t);
+
+                     used[type].set(stack);
+                     call(stack, 0, type);
+                  }
+
+                  r.stop();
+                  r.dump(p);
+               }
+
+               // A .jfr file is a sequence of chunks, so the recordings are concatenated
+               try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ))
+               {
+                  long position = 0;
+                  long size = in.size();
+                  while (position < size)
+                  {
+                     position += in.transferTo(position, size - position, out);
+                  }
+               }
+            }
+            finally
+            {
+               Files.deleteIfExists(p);
+            }
+         }
+      }
+   }
+
+   /**
+    * Call the method of a level of a stack, and commit the event at the end
+    * @param stack The stack
+    * @param level The level
+    * @param type The index of the allocated class
+    */
+   private void call(int stack, int level, int type)
+   {
+      if (level == depth)
+      {
+         Allocation a = new Allocation();
+         a.objectClass = classes[type];
+         a.allocationSize = classes[type].isArray() ? 16 + random.nextInt(1 << (4 + random.nextInt(12))) : 16 + 8 * (type % 6);
+         a.tlabSize = 524288;
+         a.commit();
+         return;
+      }
+
+      switch (method(stack, level))
+      {
+         case 0: m0(stack, level + 1, type); break;
+         case 1: m1(stack, level + 1, type); break;
+         case 2: m2(stack, level + 1, type); break;
+         case 3: m3(stack, level + 1, type); break;
+         case 4: m4(stack, level + 1, type); break;
+         case 5: m5(stack, level + 1, type); break;
+         case 6: m6(stack, level + 1, type); break;
+         case 7: m7(stack, level + 1, type); break;
+         case 8: m8(stack, level + 1, type); break;
+         case 9: m9(stack, level + 1, type); break;
+         case 10: m10(stack, level + 1, type); break;
+         case 11: m11(stack, level + 1, type); break;
+         case 12: m12(stack, level + 1, type); break;
+         case 13: m13(stack, level + 1, type); break;
+         case 14: m14(stack, level + 1, type); break;
+         default: m15(stack, level + 1, type); break;
+      }
+   }
+
+   /**
+    * Get the method of a level of a stack. The method is a digit of the stack, mixed with
+    * the level, so the stacks don't all share the same prefix
+    * @param stack The stack
+    * @param level The level
+    * @return The index of the method
+    */
+   private static int method(int stack, int level)
+   {
+      return ((stack >>> (4 * (level % 8))) + level * 7) & (METHODS - 1);
+   }
+
+   /**
+    * Get the number of distinct stacks of the events, with their allocated class, like
+    * javamemflame counts them. The stack ids only bound the number of method paths, since
+    * the skew leaves ids unused, and the ids which only differ in the bits above the levels
+    * of a stack have the same methods
+    * @return The value
+    */
+   long getDistinctStacks()
+   {
+      Set<String> distinct = new HashSet<>();
+      char[] key = new char[depth + 1];
+
+      for (int type = 0; type < used.length; type++)
+      {
+         for (int stack = used[type].nextSetBit(0); stack >= 0; stack = used[type].nextSetBit(stack + 1))
+         {
+            for (int level = 0; level < depth; level++)
+            {
+               key[level] = (char)method(stack, level);
+            }
+            key[depth] = (char)type;
+
+            distinct.add(new String(key));
+         }
+      }
+
+      return distinct.size();
+   }
+
+   private void m0(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m1(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m2(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m3(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m4(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m5(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m6(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m7(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m8(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m9(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m10(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m11(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m12(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m13(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m14(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   private void m15(int s, int l, int t)
+   {
+      call(s, l, t);
+   }
+
+   /**
+    * Usage
+    */
+   private static void usage()
+   {
+      System.out.println("Usage: java -cp benchmarks.jar org.jboss.javamemflame.Generator <file.jfr> [option=value]*");
+      System.out.println("");
+      System.out.println("Options:");
+      System.out.println("  events=num  : Number of allocation events (1000000)");
+      System.out.println("  stacks=num  : Number of stack ids, which map to at most as many stacks (10000)");
+      System.out.println("  depth=num   : Depth of the stacks (24)");
+      System.out.println("  classes=num : Number of allocated classes, up to 64 (16)");
+      System.out.println("  chunks=num  : Number of chunks (1)");
+      System.out.println("  seed=num    : Seed (42)");
+      System.out.println("");
+      System.out.println("Stacks deeper than 64 need -XX:FlightRecorderOptions:stackdepth=num");
+   }
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      try
+      {
+         if (args.length == 0)
+         {
+            usage();
+            return;
+         }
+
+         Path path = Paths.get(args[0]);
+         Properties p = new Properties();
+         p.setProperty("events", "1000000");
+         p.setProperty("stacks", "10000");
+         p.setProperty("depth", "24");
+         p.setProperty("classes", "16");
+         p.setProperty("chunks", "1");
+         p.setProperty("seed", "42");
+
+         for (int i = 1; i < args.length; i++)
+         {
+            StringTokenizer st = new StringTokenizer(args[i], "=");
+            String key = st.nextToken();
+            if (!p.containsKey(key) || !st.hasMoreTokens())
+            {
+               usage();
+               return;
+            }
+
+            p.setProperty(key, st.nextToken());
+         }
+
+         long events = Long.valueOf(p.getProperty("events"));
+         int chunks = Integer.valueOf(p.getProperty("chunks"));
+
+         long start = System.currentTimeMillis();
+
+         Generator g = new Generator(Integer.valueOf(p.getProperty("stacks")),
+                                     Integer.valueOf(p.getProperty("depth")),
+                                     Integer.valueOf(p.getProperty("classes")),
+                                     Long.valueOf(p.getProperty("seed")));
+         g.generate(path, events, chunks);
+
+         p.setProperty("size", Long.toString(Files.size(path)));
+         p.setProperty("distinctStacks", Long.toString(g.getDistinctStacks()));
+
+         try (OutputStream os = Files.newOutputStream(Paths.get(path.toString() + ".properties")))
+         {
+            p.store(os, "javamemflame generator");
+         }
+
+         System.out.println("javamemflame: Wrote " + path + " (" + events + " events, " + Files.size(path) +
+                            " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
+   }
+}
@@ -0,0 +1,89 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.consumer.RecordedEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ingest; the events are processed by ProcessEvent.run into a call tree per thread,
+ * while all threads share the frame table, like the workers of Main. A score is the
+ * number of events per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessEventBenchmark
+{
+   /**
+    * The worker of a thread
+    */
+   @State(Scope.Thread)
+   public static class Worker
+   {
+      BlockingQueue<List<RecordedEvent>> queue;
+      ProcessEvent pe;
+
+      /**
+       * Create the worker
+       * @param events The events
+       */
+      @Setup
+      public void setup(Events events)
+      {
+         queue = new LinkedBlockingQueue<>();
+         pe = new ProcessEvent(new CallTree(), events.ft, null, queue);
+      }
+   }
+
+   /**
+    * Process the events through the queue of a worker
+    * @param events The events
+    * @param worker The worker
+    */
+   @Benchmark
+   @OperationsPerInvocation(Events.EVENTS)
+   public void run(Events events, Worker worker)
+   {
+      worker.queue.addAll(events.batches);
+      worker.queue.add(Collections.emptyList());
+      worker.pe.run();
+   }
+
+   /**
+    * Process the events directly, and add the counters to the call tree
+    * @param events The events
+    * @param worker The worker
+    */
+   @Benchmark
+   @OperationsPerInvocation(Events.EVENTS)
+   public void process(Events events, Worker worker)
+   {
+      List<RecordedEvent> l = events.events;
+      for (int i = 0; i < l.size(); i++)
+      {
+         worker.pe.process(l.get(i));
+      }
+      worker.pe.flush();
+   }
+}
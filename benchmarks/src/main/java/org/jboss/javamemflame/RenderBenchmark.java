@@ -0,0 +1,159 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Render; the selection of the stacks, and the writing of the flame graph, of a call
+ * tree of synthetic stacks. Both change the tree, so every thread renders a fresh copy
+ * of it. A score is the number of stacks per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark
+{
+   /** The number of stacks */
+   private static final int STACKS = 65536;
+
+   /** The number of methods */
+   private static final int METHODS = 1024;
+
+   /**
+    * The call tree of the synthetic stacks
+    */
+   @State(Scope.Benchmark)
+   public static class Stacks
+   {
+      FrameTable ft;
+      CallTree tree;
+
+      /**
+       * Create the stacks. The frames near the root are shared by many stacks, like
+       * in a real application
+       */
+      @Setup
+      public void setup()
+      {
+         Random random = new Random(42);
+
+         ft = new FrameTable(null);
+         tree = new CallTree();
+
+         int[] methods = new int[METHODS];
+         for (int i = 0; i < METHODS; i++)
+         {
+            methods[i] = ft.method("org.example.package" + (i % 16) + ".Class" + (i / 8), "method" + (i % 8));
+         }
+
+         int[] types = new int[64];
+         for (int i = 0; i < types.length; i++)
+         {
+            types[i] = ft.allocation("org.example.Type" + i);
+         }
+
+         for (int i = 0; i < STACKS; i++)
+         {
+            int[] stack = new int[8 + random.nextInt(32)];
+            for (int j = 0; j < stack.length; j++)
+            {
+               stack[j] = methods[random.nextInt(Math.min(METHODS, 4 << Math.min(j, 10)))];
+            }
+
+            long bytes = 16 + (long)(random.nextDouble() * random.nextDouble() * 1000000);
+            tree.add(stack, types[random.nextInt(types.length)], bytes, 1);
+         }
+      }
+   }
+
+   /**
+    * The copy of the call tree of a thread
+    */
+   @State(Scope.Thread)
+   public static class Copy
+   {
+      CallTree tree;
+
+      /**
+       * Copy the call tree
+       * @param stacks The stacks
+       */
+      @Setup(Level.Invocation)
+      public void setup(Stacks stacks)
+      {
+         tree = new CallTree();
+         tree.merge(stacks.tree);
+      }
+   }
+
+   /**
+    * Channel that throws the bytes away
+    */
+   static class NullChannel implements WritableByteChannel
+   {
+      public int write(ByteBuffer src)
+      {
+         int n = src.remaining();
+         src.position(src.limit());
+         return n;
+      }
+
+      public boolean isOpen()
+      {
+         return true;
+      }
+
+      public void close()
+      {
+      }
+   }
+
+   /**
+    * Select the top stacks, which sorts them by value
+    * @param stacks The stacks
+    * @param copy The copy
+    * @return The selected stacks
+    */
+   @Benchmark
+   @OperationsPerInvocation(STACKS)
+   public List<CallTree.Node> select(Stacks stacks, Copy copy)
+   {
+      return Main.select(copy.tree, stacks.ft, true, 0, 1000);
+   }
+
+   /**
+    * Write the flame graph
+    * @param stacks The stacks
+    * @param copy The copy
+    */
+   @Benchmark
+   @OperationsPerInvocation(STACKS)
+   public void flamegraph(Stacks stacks, Copy copy) throws Exception
+   {
+      Flamegraph flamegraph = new Flamegraph("Benchmark", stacks.ft, copy.tree, true, 0.0, 0.0,
+                                             Main.DEFAULT_MIN_WIDTH, Main.DEFAULT_MAX_ELEMENTS);
+      flamegraph.write(new NullChannel());
+   }
+}
@@ -0,0 +1,666 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Call tree; a prefix tree of interned frame ids where every node holds the allocated
+ * bytes and the allocation count of the stacks ending in it, and the totals of the
+ * stacks passing through it.
+ *
+ * A tree is owned by a single thread while it is being added to; trees from
+ * different threads are combined using merge
+ */
+class CallTree
+{
+   /** The id of the root node */
+   static final int ROOT = -1;
+
+   /** No prefix frames */
+   private static final int[] NO_PREFIX = new int[0];
+
+   private Node root;
+   private int nodes;
+
+   CallTree()
+   {
+      clear();
+   }
+
+   /**
+    * Get the root
+    * @return The value
+    */
+   Node getRoot()
+   {
+      return root;
+   }
+
+   /**
+    * Get the total
+    * @param size Bytes or count
+    * @return The value
+    */
+   long getTotal(boolean size)
+   {
+      return root.getTotal(size);
+   }
+
+   /**
+    * Get the number of nodes
+    * @return The value
+    */
+   int size()
+   {
+      return nodes;
+   }
+
+   /**
+    * Clear the tree
+    */
+   void clear()
+   {
+      root = new Node(ROOT, null);
+      nodes = 1;
+   }
+
+   /**
+    * Add a stack
+    * @param stack The method ids, from the root to the allocating method
+    * @param type The id of the allocated class
+    * @param bytes The number of bytes
+    * @param count The number of allocations
+    * @return The node of the stack
+    */
+   Node add(int[] stack, int type, long bytes, long count)
+   {
+      return add(NO_PREFIX, stack, type, bytes, count);
+   }
+
+   /**
+    * Add a stack under frames of its own, like the time window or the thread of the stack
+    * @param prefix The ids of the frames before the stack; ROOT entries are skipped
+    * @param stack The method ids, from the root to the allocating method
+    * @param type The id of the allocated class
+    * @param bytes The number of bytes
+    * @param count The number of allocations
+    * @return The node of the stack
+    */
+   Node add(int[] prefix, int[] stack, int type, long bytes, long count)
+   {
+      Node n = root;
+      n.totalBytes += bytes;
+      n.totalCount += count;
+
+      for (int i = 0; i < prefix.length; i++)
+      {
+         if (prefix[i] != ROOT)
+         {
+            n = child(n, prefix[i]);
+            n.totalBytes += bytes;
+            n.totalCount += count;
+         }
+      }
+
+      for (int i = 0; i < stack.length; i++)
+      {
+         n = child(n, stack[i]);
+         n.totalBytes += bytes;
+         n.totalCount += count;
+      }
+
+      n = child(n, type);
+      n.totalBytes += bytes;
+      n.totalCount += count;
+      n.bytes += bytes;
+      n.count += count;
+
+      return n;
+   }
+
+   /**
+    * Remove the stacks ending in a node
+    * @param node The node
+    */
+   void remove(Node node)
+   {
+      long bytes = node.bytes;
+      long count = node.count;
+
+      node.bytes = 0;
+      node.count = 0;
+
+      for (Node n = node; n != null; n = n.parent)
+      {
+         n.totalBytes -= bytes;
+         n.totalCount -= count;
+      }
+   }
+
+   /**
+    * Calculate the totals of all nodes from the values of the stacks ending in them
+    */
+   void sum()
+   {
+      sum(root);
+   }
+
+   private void sum(Node node)
+   {
+      node.totalBytes = node.bytes;
+      node.totalCount = node.count;
+
+      Node[] children = node.children;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+         {
+            sum(children[i]);
+            node.totalBytes += children[i].totalBytes;
+            node.totalCount += children[i].totalCount;
+         }
+      }
+   }
+
+   /**
+    * Merge another tree into this tree. This method is synchronized, so multiple
+    * threads can merge into the same tree
+    * @param other The other tree
+    */
+   synchronized void merge(CallTree other)
+   {
+      merge(this, root, other.root);
+   }
+
+   /**
+    * Get a copy of the stacks under a child of the root, without the child itself
+    * @param id The id of the child
+    * @return The tree; empty if there isn't such a child
+    */
+   CallTree extract(int id)
+   {
+      CallTree tree = new CallTree();
+      Node n = root.getChild(id);
+
+      if (n != null)
+         merge(tree, tree.root, n);
+
+      return tree;
+   }
+
+   /**
+    * Get a copy of the stacks passing through an included id
+    * @param included The included ids, indexed by id
+    * @return The tree
+    */
+   CallTree filter(boolean[] included)
+   {
+      CallTree tree = new CallTree();
+      filter(tree, tree.root, root, included, false);
+      tree.sum();
+      return tree;
+   }
+
+   private void filter(CallTree tree, Node target, Node source, boolean[] included, boolean include)
+   {
+      if (include)
+         target.addSelf(source.bytes, source.count);
+
+      Node[] children = source.children;
+      for (int i = 0; i < children.length; i++)
+      {
+         Node c = children[i];
+         if (c != null)
+         {
+            boolean inc = include || (c.id < included.length && included[c.id]);
+
+            // Only the paths which may hold included stacks are copied
+            if (inc || c.size > 0)
+               filter(tree, tree.child(target, c.id), c, included, inc);
+         }
+      }
+   }
+
+   /**
+    * Prune the tree to at most a number of nodes. Nodes are kept in order of their
+    * total, as long as they aren't below the thresholds. The children of a node that
+    * aren't kept are coalesced into a single leaf, so the totals stay the same
+    * @param size Bytes or count
+    * @param minTotal The minimum total of a node
+    * @param minParent The minimum fraction of the parent total of a node
+    * @param budget The maximum number of nodes, including the coalesced nodes; 0 for no limit
+    * @param other The id of the coalesced nodes
+    */
+   void prune(boolean size, long minTotal, double minParent, int budget, int other)
+   {
+      if (budget <= 0)
+         budget = Integer.MAX_VALUE;
+
+      PriorityQueue<Node> queue = new PriorityQueue<>(new Comparator<Node>()
+      {
+         public int compare(Node o1, Node o2)
+         {
+            int c = Long.compare(o2.getTotal(size), o1.getTotal(size));
+            if (c != 0)
+               return c;
+
+            // Ties are broken by the frame ids, so the result doesn't depend on the
+            // order the stacks were added in
+            return CallTree.compare(o1, o2);
+         }
+      });
+
+      // The number of children of a kept node which aren't kept yet
+      Map<Node, int[]> pending = new IdentityHashMap<>();
+      int others = 0;
+
+      queue.add(root);
+      while (!queue.isEmpty())
+      {
+         Node n = queue.poll();
+
+         int o = others;
+         int[] p = n.parent != null ? pending.get(n.parent) : null;
+         if (p != null && p[0] == 1)
+            o--;
+
+         int children = 0;
+         for (Node c : n.children)
+         {
+            if (c != null && c.getTotal(size) > 0)
+               children++;
+         }
+         if (children > 0)
+            o++;
+
+         if (pending.size() + 1 + o > budget)
+            break;
+
+         if (p != null)
+            p[0]--;
+         pending.put(n, new int[] {children});
+         others = o;
+
+         for (Node c : n.children)
+         {
+            long t = c != null ? c.getTotal(size) : 0;
+            if (t > 0 && t >= minTotal && t >= minParent * n.getTotal(size))
+               queue.add(c);
+         }
+      }
+
+      nodes = 0;
+      coalesce(root, pending.keySet(), other);
+   }
+
+   private void coalesce(Node node, Set<Node> kept, int other)
+   {
+      Node[] children = node.children;
+      long bytes = 0;
+      long count = 0;
+
+      node.children = Node.EMPTY;
+      node.size = 0;
+      nodes++;
+
+      for (int i = 0; i < children.length; i++)
+      {
+         Node c = children[i];
+         if (c != null && kept.contains(c))
+         {
+            node.add(c);
+            coalesce(c, kept, other);
+         }
+         else if (c != null)
+         {
+            bytes += c.totalBytes;
+            count += c.totalCount;
+         }
+      }
+
+      if (bytes > 0 || count > 0)
+      {
+         Node n = child(node, other);
+         n.totalBytes += bytes;
+         n.totalCount += count;
+         n.bytes += bytes;
+         n.count += count;
+      }
+   }
+
+   /**
+    * Get the nodes that have stacks ending in them
+    * @return The nodes
+    */
+   List<Node> getStacks()
+   {
+      List<Node> l = new ArrayList<>();
+      getStacks(root, l);
+      return l;
+   }
+
+   private void getStacks(Node node, List<Node> l)
+   {
+      if (node.bytes != 0 || node.count != 0)
+         l.add(node);
+
+      Node[] children = node.children;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+            getStacks(children[i], l);
+      }
+   }
+
+   /**
+    * Get the number of nodes that have stacks ending in them, without collecting them
+    * @return The value
+    */
+   long getStackCount()
+   {
+      return getStackCount(root);
+   }
+
+   private static long getStackCount(Node node)
+   {
+      long count = node.bytes != 0 || node.count != 0 ? 1 : 0;
+
+      Node[] children = node.children;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+            count += getStackCount(children[i]);
+      }
+
+      return count;
+   }
+
+   private static void merge(CallTree tree, Node target, Node source)
+   {
+      target.totalBytes += source.totalBytes;
+      target.totalCount += source.totalCount;
+      target.bytes += source.bytes;
+      target.count += source.count;
+
+      Node[] children = source.children;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+            merge(tree, tree.child(target, children[i].id), children[i]);
+      }
+   }
+
+   /**
+    * Get or create a child node
+    * @param parent The parent
+    * @param id The id
+    * @return The child
+    */
+   Node child(Node parent, int id)
+   {
+      Node n = parent.getChild(id);
+      if (n != null)
+         return n;
+
+      n = new Node(id, parent);
+      parent.add(n);
+      nodes++;
+
+      return n;
+   }
+
+   /**
+    * Compare two nodes of the same tree by the ids on their paths from the root, where
+    * a node comes before the nodes below it
+    * @param a The first node
+    * @param b The second node
+    * @return The result
+    */
+   static int compare(Node a, Node b)
+   {
+      int result = 0;
+
+      while (a.depth > b.depth)
+      {
+         a = a.parent;
+         result = 1;
+      }
+
+      while (b.depth > a.depth)
+      {
+         b = b.parent;
+         result = -1;
+      }
+
+      while (a != b && a.parent != b.parent)
+      {
+         a = a.parent;
+         b = b.parent;
+      }
+
+      if (a == b)
+         return result;
+
+      return Integer.compare(a.id, b.id);
+   }
+
+   /**
+    * Compare two stacks by their frame ids, where a stack comes before the stacks
+    * it is a prefix of, like compare of two nodes
+    * @param a The frame ids of the first stack
+    * @param al The depth of the first stack
+    * @param b The frame ids of the second stack
+    * @param bl The depth of the second stack
+    * @return The result
+    */
+   static int compare(int[] a, int al, int[] b, int bl)
+   {
+      int length = Math.min(al, bl);
+      for (int i = 0; i < length; i++)
+      {
+         if (a[i] != b[i])
+            return Integer.compare(a[i], b[i]);
+      }
+
+      return Integer.compare(al, bl);
+   }
+
+   /**
+    * Get the ids from the root to a node, so nodes of different trees can be compared
+    * @param node The node
+    * @return The ids, without the root
+    */
+   static int[] path(Node node)
+   {
+      int[] path = new int[node.getDepth()];
+      for (Node n = node; n.getParent() != null; n = n.getParent())
+      {
+         path[n.getDepth() - 1] = n.getId();
+      }
+
+      return path;
+   }
+
+   /**
+    * Spread the bits of an id
+    * @param id The id
+    * @return The hash
+    */
+   private static int mix(int id)
+   {
+      int h = id * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   /**
+    * Node of the call tree
+    */
+   static class Node
+   {
+      private static final Node[] EMPTY = new Node[0];
+
+      int id;
+      int depth;
+      int size;
+      long bytes;
+      long count;
+      long totalBytes;
+      long totalCount;
+      Node parent;
+      Node[] children;
+
+      Node(int id, Node parent)
+      {
+         this.id = id;
+         this.depth = parent != null ? parent.depth + 1 : 0;
+         this.size = 0;
+         this.bytes = 0;
+         this.count = 0;
+         this.totalBytes = 0;
+         this.totalCount = 0;
+         this.parent = parent;
+         this.children = EMPTY;
+      }
+
+      /**
+       * Get the id
+       * @return The value
+       */
+      int getId()
+      {
+         return id;
+      }
+
+      /**
+       * Get the depth; the root has depth 0
+       * @return The value
+       */
+      int getDepth()
+      {
+         return depth;
+      }
+
+      /**
+       * Get the value of the stacks ending in this node
+       * @param size Bytes or count
+       * @return The value
+       */
+      long getSelf(boolean size)
+      {
+         return size ? bytes : count;
+      }
+
+      /**
+       * Get the value of the stacks passing through this node
+       * @param size Bytes or count
+       * @return The value
+       */
+      long getTotal(boolean size)
+      {
+         return size ? totalBytes : totalCount;
+      }
+
+      /**
+       * Add to the value of the stacks ending in this node; the totals must be
+       * calculated afterwards
+       * @param b The number of bytes
+       * @param c The number of allocations
+       */
+      void addSelf(long b, long c)
+      {
+         bytes += b;
+         count += c;
+      }
+
+      /**
+       * Get the parent
+       * @return The value
+       */
+      Node getParent()
+      {
+         return parent;
+      }
+
+      /**
+       * Get a child
+       * @param id The id
+       * @return The child; null if there isn't one
+       */
+      Node getChild(int id)
+      {
+         int mask = children.length - 1;
+
+         if (mask >= 0)
+         {
+            int i = mix(id) & mask;
+            Node n = children[i];
+            while (n != null)
+            {
+               if (n.id == id)
+                  return n;
+
+               i = (i + 1) & mask;
+               n = children[i];
+            }
+         }
+
+         return null;
+      }
+
+      /**
+       * Get the children; the array may contain null entries
+       * @return The value
+       */
+      Node[] getChildren()
+      {
+         return children;
+      }
+
+      private void add(Node n)
+      {
+         if (4 * (size + 1) > 3 * children.length)
+         {
+            resize();
+         }
+
+         insert(n);
+      }
+
+      private void resize()
+      {
+         Node[] old = children;
+         children = new Node[old.length == 0 ? 4 : old.length * 2];
+         size = 0;
+
+         for (int i = 0; i < old.length; i++)
+         {
+            if (old[i] != null)
+               insert(old[i]);
+         }
+      }
+
+      private void insert(Node n)
+      {
+         int mask = children.length - 1;
+         int i = mix(n.id) & mask;
+
+         while (children[i] != null)
+         {
+            i = (i + 1) & mask;
+         }
+
+         children[i] = n;
+         size++;
+      }
+   }
+}
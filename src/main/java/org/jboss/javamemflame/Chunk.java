@@ -0,0 +1,198 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chunk of a .jfr file. Each chunk is self-contained with its own constant pool,
+ * so chunks can be decoded independently of each other
+ */
+class Chunk
+{
+   /** "FLR\0" */
+   private static final int MAGIC = 0x464C5200;
+
+   /** Magic, major, minor and chunk size */
+   private static final int HEADER_SIZE = 16;
+
+   /** The offset of the start time in nanoseconds since the epoch */
+   private static final int START_OFFSET = 32;
+
+   /** The offset of the duration in nanoseconds */
+   private static final int DURATION_OFFSET = 40;
+
+   private Path path;
+   private long offset;
+   private long size;
+
+   Chunk(Path path, long offset, long size)
+   {
+      this.path = path;
+      this.offset = offset;
+      this.size = size;
+   }
+
+   /**
+    * Get offset
+    * @return The value
+    */
+   long getOffset()
+   {
+      return offset;
+   }
+
+   /**
+    * Get size
+    * @return The value
+    */
+   long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Find the chunks of a file. If the chunk headers can't be trusted, f.ex. if the
+    * file is still being written, the whole file is returned as a single chunk
+    * @param path The path of the file
+    * @return The chunks
+    */
+   static List<Chunk> find(Path path) throws IOException
+   {
+      List<Chunk> chunks = new ArrayList<>();
+
+      try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+      {
+         long length = fc.size();
+         long offset = 0;
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+         while (offset < length)
+         {
+            header.clear();
+            while (header.hasRemaining() && fc.read(header, offset + header.position()) > 0)
+            {
+               // Read the header
+            }
+
+            if (header.hasRemaining() || header.getInt(0) != MAGIC)
+               break;
+
+            long size = header.getLong(8);
+            if (size <= 0 || offset + size > length)
+               break;
+
+            chunks.add(new Chunk(path, offset, size));
+            offset += size;
+         }
+
+         if (offset != length)
+         {
+            chunks.clear();
+            chunks.add(new Chunk(path, 0, length));
+         }
+      }
+
+      return chunks;
+   }
+
+   /**
+    * Get the start time of a file, which is the start time of its first chunk
+    * @param path The path of the file
+    * @return The number of milliseconds since the epoch; -1 if it isn't known
+    */
+   static long start(Path path) throws IOException
+   {
+      try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+      {
+         ByteBuffer header = ByteBuffer.allocate(START_OFFSET + 8);
+         while (header.hasRemaining() && fc.read(header, header.position()) > 0)
+         {
+            // Read the header
+         }
+
+         if (header.hasRemaining() || header.getInt(0) != MAGIC)
+            return -1;
+
+         return header.getLong(START_OFFSET) / 1000000L;
+      }
+   }
+
+   /**
+    * Get the end time of a file, which is the end of its last chunk
+    * @param path The path of the file
+    * @return The number of milliseconds since the epoch; -1 if it isn't known, f.ex. if
+    *         the last chunk is still being written
+    */
+   static long end(Path path) throws IOException
+   {
+      List<Chunk> chunks = find(path);
+      if (chunks.isEmpty())
+         return -1;
+
+      Chunk last = chunks.get(chunks.size() - 1);
+
+      try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+      {
+         ByteBuffer header = ByteBuffer.allocate(DURATION_OFFSET + 8);
+         while (header.hasRemaining() && fc.read(header, last.offset + header.position()) > 0)
+         {
+            // Read the header
+         }
+
+         if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getLong(DURATION_OFFSET) <= 0)
+            return -1;
+
+         return (header.getLong(START_OFFSET) + header.getLong(DURATION_OFFSET)) / 1000000L;
+      }
+   }
+
+   /**
+    * Copy the chunk into a file of its own, so it can be opened by a RecordingFile, which
+    * only reads whole files. The chunk is read twice, and the temporary directory needs
+    * the size of the chunks being decoded at the same time. The file is deleted if the
+    * copy fails
+    * @return The path of the file; the caller must delete it
+    */
+   Path extract() throws IOException
+   {
+      Path p = Files.createTempFile("javamemflame", ".jfr");
+      boolean copied = false;
+
+      try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(p, StandardOpenOption.WRITE))
+      {
+         long position = offset;
+         long remaining = size;
+
+         while (remaining > 0)
+         {
+            long transferred = in.transferTo(position, remaining, out);
+            if (transferred <= 0)
+               throw new IOException("Unexpected end of " + path);
+
+            position += transferred;
+            remaining -= transferred;
+         }
+
+         copied = true;
+      }
+      finally
+      {
+         if (!copied)
+            Files.deleteIfExists(p);
+      }
+
+      return p;
+   }
+}
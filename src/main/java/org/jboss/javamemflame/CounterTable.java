@@ -0,0 +1,235 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Counter table; an open-addressing table of long keys with the bytes and the count
+ * of each key side by side, stored off-heap in direct buffers, so an update doesn't
+ * allocate. The entries are kept in insertion order, so the index of an entry can be
+ * used as an interned id of its key.
+ *
+ * A table is owned by a single thread
+ */
+class CounterTable
+{
+   /** The default number of entries before the table grows */
+   static final int DEFAULT_CAPACITY = 4096;
+
+   /** The number of bytes of an entry; the key, the bytes and the count */
+   private static final int ENTRY_SIZE = 24;
+
+   /** The offset of the bytes in an entry */
+   private static final int BYTES = 8;
+
+   /** The offset of the count in an entry */
+   private static final int COUNT = 16;
+
+   /** The slots; the index of an entry + 1, or 0 for an empty slot */
+   private ByteBuffer slots;
+
+   /** The entries */
+   private ByteBuffer entries;
+
+   private int mask;
+   private int capacity;
+   private int size;
+
+   CounterTable()
+   {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * Constructor
+    * @param capacity The number of entries before the table grows
+    */
+   CounterTable(int capacity)
+   {
+      allocate(Math.max(capacity, 16));
+   }
+
+   /**
+    * Get the number of entries
+    * @return The value
+    */
+   int size()
+   {
+      return size;
+   }
+
+   /**
+    * Get the index of the entry of a key, adding the entry if there isn't one
+    * @param key The key
+    * @return The index
+    */
+   int index(long key)
+   {
+      int slot = mix(key) & mask;
+
+      while (true)
+      {
+         int index = slots.getInt(slot << 2) - 1;
+
+         if (index < 0)
+         {
+            if (size == capacity)
+            {
+               grow();
+               return index(key);
+            }
+
+            index = size++;
+            int offset = index * ENTRY_SIZE;
+            entries.putLong(offset, key);
+            entries.putLong(offset + BYTES, 0L);
+            entries.putLong(offset + COUNT, 0L);
+            slots.putInt(slot << 2, index + 1);
+
+            return index;
+         }
+
+         if (entries.getLong(index * ENTRY_SIZE) == key)
+            return index;
+
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   /**
+    * Add to the entry of a key
+    * @param key The key
+    * @param bytes The number of bytes
+    * @param count The number of allocations
+    */
+   void add(long key, long bytes, long count)
+   {
+      int offset = index(key) * ENTRY_SIZE;
+      entries.putLong(offset + BYTES, entries.getLong(offset + BYTES) + bytes);
+      entries.putLong(offset + COUNT, entries.getLong(offset + COUNT) + count);
+   }
+
+   /**
+    * Get the key of an entry
+    * @param index The index
+    * @return The value
+    */
+   long getKey(int index)
+   {
+      return entries.getLong(index * ENTRY_SIZE);
+   }
+
+   /**
+    * Get the bytes of an entry
+    * @param index The index
+    * @return The value
+    */
+   long getBytes(int index)
+   {
+      return entries.getLong(index * ENTRY_SIZE + BYTES);
+   }
+
+   /**
+    * Get the count of an entry
+    * @param index The index
+    * @return The value
+    */
+   long getCount(int index)
+   {
+      return entries.getLong(index * ENTRY_SIZE + COUNT);
+   }
+
+   /**
+    * Remove all entries; the memory is kept
+    */
+   void clear()
+   {
+      if (size == 0)
+         return;
+
+      // The slots of the entries are found again, which is cheaper than clearing all slots
+      // when the table is sparse
+      if (size < capacity / 4)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            int slot = mix(getKey(i)) & mask;
+            while (slots.getInt(slot << 2) != 0)
+            {
+               slots.putInt(slot << 2, 0);
+               slot = (slot + 1) & mask;
+            }
+         }
+      }
+      else
+      {
+         for (int i = 0; i <= mask; i++)
+         {
+            slots.putInt(i << 2, 0);
+         }
+      }
+
+      size = 0;
+   }
+
+   /**
+    * Double the capacity, and insert the entries into the new slots
+    */
+   private void grow()
+   {
+      ByteBuffer old = entries;
+      int length = size;
+
+      allocate(capacity * 2);
+
+      for (int i = 0; i < length; i++)
+      {
+         int offset = i * ENTRY_SIZE;
+         long key = old.getLong(offset);
+         int slot = mix(key) & mask;
+
+         while (slots.getInt(slot << 2) != 0)
+         {
+            slot = (slot + 1) & mask;
+         }
+
+         slots.putInt(slot << 2, i + 1);
+         entries.putLong(offset, key);
+         entries.putLong(offset + BYTES, old.getLong(offset + BYTES));
+         entries.putLong(offset + COUNT, old.getLong(offset + COUNT));
+      }
+
+      size = length;
+   }
+
+   /**
+    * Allocate the buffers, with twice as many slots as entries
+    * @param capacity The number of entries
+    */
+   private void allocate(int capacity)
+   {
+      int length = Integer.highestOneBit(capacity * 2 - 1) << 1;
+
+      this.slots = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder());
+      this.entries = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+      this.mask = length - 1;
+      this.capacity = capacity;
+      this.size = 0;
+   }
+
+   /**
+    * Spread the bits of a key
+    * @param key The key
+    * @return The hash
+    */
+   static int mix(long key)
+   {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h ^ (h >>> 32));
+   }
+}
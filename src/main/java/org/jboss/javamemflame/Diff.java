@@ -0,0 +1,146 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Diff; compares the stacks of a candidate call tree with the stacks of a baseline.
+ * Both trees are walked together once, and the baseline is normalized to the total of
+ * the candidate, so recordings of different lengths can be compared
+ */
+class Diff
+{
+   private CallTree baseline;
+   private CallTree candidate;
+   private boolean size;
+   private double scale;
+   private List<Row> rows;
+
+   /**
+    * Constructor
+    * @param baseline The baseline
+    * @param candidate The candidate
+    * @param size Bytes or count
+    */
+   Diff(CallTree baseline, CallTree candidate, boolean size)
+   {
+      this.baseline = baseline;
+      this.candidate = candidate;
+      this.size = size;
+      this.scale = 1.0;
+      this.rows = null;
+   }
+
+   /**
+    * Get the rows of the stacks that differ, ordered from the largest increase to the
+    * largest decrease, and by stack when the changes are the same
+    * @return The rows; a row is the delta, the normalized baseline and the candidate
+    */
+   List<Row> getRows()
+   {
+      if (rows == null)
+      {
+         long b = baseline.getTotal(size);
+         scale = b > 0 ? candidate.getTotal(size) / (double)b : 1.0;
+
+         rows = new ArrayList<>();
+         walk(candidate.getRoot(), baseline.getRoot());
+
+         rows.sort(new Comparator<Row>()
+         {
+            public int compare(Row o1, Row o2)
+            {
+               int c = Long.compare(o2.delta, o1.delta);
+               if (c != 0)
+                  return c;
+
+               // The nodes may be in either tree, so they are compared by their paths
+               int[] p1 = CallTree.path(o1.node);
+               int[] p2 = CallTree.path(o2.node);
+               return CallTree.compare(p1, p1.length, p2, p2.length);
+            }
+         });
+      }
+
+      return rows;
+   }
+
+   /**
+    * Write the delta table
+    * @param p The path of the file
+    * @param ft The frame table
+    */
+   void write(Path p, FrameTable ft) throws Exception
+   {
+      BufferedWriter writer = TextFile.openFile(p);
+
+      TextFile.append(writer, "# delta baseline candidate stack");
+      for (Row row : getRows())
+      {
+         TextFile.append(writer, ft, row.node, row.delta, row.baseline, row.candidate);
+      }
+
+      TextFile.closeFile(writer);
+   }
+
+   /**
+    * Compare a node of the candidate with the same node of the baseline, and then
+    * their children
+    * @param c The node of the candidate; null if there isn't one
+    * @param b The node of the baseline; null if there isn't one
+    */
+   private void walk(CallTree.Node c, CallTree.Node b)
+   {
+      long cv = c != null ? c.getSelf(size) : 0;
+      long bv = b != null ? Math.round(b.getSelf(size) * scale) : 0;
+
+      if (cv != bv)
+         rows.add(new Row(c != null ? c : b, cv - bv, bv, cv));
+
+      if (c != null)
+      {
+         for (CallTree.Node child : c.getChildren())
+         {
+            if (child != null)
+               walk(child, b != null ? b.getChild(child.getId()) : null);
+         }
+      }
+
+      // The stacks which are only in the baseline
+      if (b != null)
+      {
+         for (CallTree.Node child : b.getChildren())
+         {
+            if (child != null && (c == null || c.getChild(child.getId()) == null))
+               walk(null, child);
+         }
+      }
+   }
+
+   /**
+    * Row of the delta table
+    */
+   static class Row
+   {
+      CallTree.Node node;
+      long delta;
+      long baseline;
+      long candidate;
+
+      Row(CallTree.Node node, long delta, long baseline, long candidate)
+      {
+         this.node = node;
+         this.delta = delta;
+         this.baseline = baseline;
+         this.candidate = candidate;
+      }
+   }
+}
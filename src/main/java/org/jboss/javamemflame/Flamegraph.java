@@ -5,24 +5,22 @@
  */
 package org.jboss.javamemflame;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
- * Flamegraph
+ * Flamegraph; streams the boxes of a call tree to a channel
  */
 class Flamegraph
 {
    private static final String[] HEADER1 = new String[] {
       "<?xml version=\"1.0\" standalone=\"no\"?>",
       "<!DOCTYPE svg PUBLIC \"-//W3C//DTD SVG 1.1//EN\" \"http://www.w3.org/Graphics/SVG/1.1/DTD/svg11.dtd\">",
-      "<svg version=\"1.1\" width=\"1200\" height=\"1142\" onload=\"init(evt)\" viewBox=\"0 0 1200 1142\" xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">",
+      "<svg version=\"1.1\" width=\"1200\" height=\"${height}\" onload=\"init(evt)\" viewBox=\"0 0 1200 ${height}\" xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">",
       "<!-- Flame graph stack visualization. See https://github.com/brendangregg/FlameGraph for latest version. -->",
       "<!-- NOTES:  -->",
       "<defs>",
@@ -356,219 +354,635 @@ class Flamegraph
       "	}",
       "]]>",
       "</script>",
-      "<rect x=\"0.0\" y=\"0\" width=\"1200.0\" height=\"1142.0\" fill=\"url(#background)\"  />"
+      "<rect x=\"0.0\" y=\"0\" width=\"1200.0\" height=\"${height}.0\" fill=\"url(#background)\"  />"
    };
 
    private static final String[] HEADER2 = new String[] {
-      "<text id=\"details\" x=\"10.00\" y=\"1125\" > </text>",
+      "<text id=\"details\" x=\"10.00\" y=\"${details}\" > </text>",
       "<text id=\"unzoom\" x=\"10.00\" y=\"24\" class=\"hide\">Reset Zoom</text>",
       "<text id=\"search\" x=\"1090.00\" y=\"24\" >Search</text>",
-      "<text id=\"matched\" x=\"1090.00\" y=\"1125\" > </text>",
+      "<text id=\"matched\" x=\"1090.00\" y=\"${details}\" > </text>",
       "<g id=\"frames\">"
    };
 
    private static final String[] FOOTER = new String[] {"</g>", "</svg>"};
 
+   /** The width of the frames */
+   static final double WIDTH = 1180.0;
+
+   /** The height of a frame including spacing */
+   private static final int FRAME_HEIGHT = 16;
+
+   /** The space above the frames */
+   private static final int TOP = 33;
+
+   /** The space below the frames */
+   private static final int BOTTOM = 49;
+
+   /** The width of a character in pixels */
+   private static final double CHAR_WIDTH = 7.5;
+
+   /** The size of the output buffer */
+   private static final int BUFFER_SIZE = 65536;
+
+   private static final byte[] BOX_START = bytes("<g><title>");
+   private static final byte[] BOX_INFO = bytes(" (");
+   private static final byte[] BOX_BYTES = bytes(" bytes, ");
+   private static final byte[] BOX_COUNT = bytes(" allocations, ");
+   private static final byte[] BOX_INFO_END = bytes("%)");
+   private static final byte[] BOX_CHANGE = bytes("%, ");
+   private static final byte[] BOX_NEW = bytes("new)");
+   private static final byte[] BOX_RECT_X = bytes("</title><rect x=\"");
+   private static final byte[] BOX_RECT_Y = bytes("\" y=\"");
+   private static final byte[] BOX_RECT_WIDTH = bytes("\" width=\"");
+   private static final byte[] BOX_RECT_FILL = bytes("\" height=\"15.0\" fill=\"");
+   private static final byte[] BOX_JAVA = bytes("rgb(71,219,71)");
+   private static final byte[] BOX_OTHER = bytes("rgb(242,111,111)");
+   private static final byte[] BOX_INLINED = bytes("rgb(79,207,207)");
+   private static final byte[] BOX_NEUTRAL = bytes("rgb(200,200,200)");
+   private static final byte[] BOX_RGB = bytes("rgb(");
+   private static final byte[] BOX_TEXT_X = bytes("\" rx=\"2\" ry=\"2\" /><text x=\"");
+   private static final byte[] BOX_TEXT_Y = bytes("\" y=\"");
+   private static final byte[] BOX_TEXT = bytes(".5\">");
+   private static final byte[] BOX_END = bytes("</text></g>\n");
+
    private String title;
-   private List<String> data;
-   
-   Flamegraph(String title, List<String> data)
+   private FrameTable ft;
+   private CallTree tree;
+   private boolean size;
+   private double minPercent;
+   private double minParent;
+   private double minWidth;
+   private int budget;
+   private int height;
+   private CallTree baseline;
+   private double scale;
+   private int other;
+   private int filtered;
+
+   private WritableByteChannel channel;
+   private ByteBuffer buffer;
+
+   // Escaped labels, and the end offset of each character when it isn't one byte
+   private byte[][] labels;
+   private int[][] ends;
+   private int[] ranks;
+   private long[][] scratch;
+
+   /**
+    * Constructor
+    * @param title The title
+    * @param ft The frame table
+    * @param tree The call tree, which is pruned when written
+    * @param size Bytes or count
+    * @param minPercent The minimum percentage of the total for a frame
+    * @param minParent The minimum percentage of the parent for a frame
+    * @param minWidth The minimum width of a frame in pixels
+    * @param budget The maximum number of frames; 0 for no limit
+    */
+   Flamegraph(String title, FrameTable ft, CallTree tree, boolean size,
+              double minPercent, double minParent, double minWidth, int budget)
    {
       this.title = title;
-      this.data = data;
+      this.ft = ft;
+      this.tree = tree;
+      this.size = size;
+      this.minPercent = minPercent;
+      this.minParent = minParent;
+      this.minWidth = minWidth;
+      this.budget = budget;
+      this.baseline = null;
+      this.scale = 1.0;
+      this.other = -1;
+      this.filtered = -1;
    }
 
-   void write(BufferedWriter writer) throws IOException
+   /**
+    * Set the baseline; the flame graph is then colored by the change of each frame
+    * from the baseline, which is normalized to the total of the call tree
+    * @param baseline The baseline
+    */
+   void setBaseline(CallTree baseline)
    {
-      int x = 10;
+      this.baseline = baseline;
+   }
+
+   /**
+    * Write the flame graph
+    * @param channel The channel
+    */
+   void write(WritableByteChannel channel) throws IOException
+   {
+      long total = tree.getTotal(size);
+      int depth = 0;
+
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+      if (total > 0)
+      {
+         // Coalesce the frames that are too small to be seen, or over the budget
+         long minTotal = (long)Math.ceil(Math.max(total * minPercent / 100, total * minWidth / WIDTH));
+         other = ft.other();
+         tree.prune(size, minTotal, minParent / 100, budget, other);
+
+         depth = depth(tree.getRoot(), WIDTH / total);
+
+         if (baseline != null && baseline.getTotal(size) > 0)
+         {
+            scale = total / (double)baseline.getTotal(size);
+            filtered = ft.name("Filtered");
+         }
+      }
+
+      height = TOP + (depth + 1) * FRAME_HEIGHT + BOTTOM;
 
       for (int i = 0; i < HEADER1.length; i++)
       {
-         TextFile.append(writer, HEADER1[i]);
+         writeLine(header(HEADER1[i]));
       }
-      writeTitle(writer);
+      writeTitle();
       for (int i = 0; i < HEADER2.length; i++)
       {
-         TextFile.append(writer, HEADER2[i]);
+         writeLine(header(HEADER2[i]));
       }
 
-      // Calculate total
-      long total = 0;
-      for (int i = 0; i < data.size(); i++)
+      // Generate a box for each node of the call tree
+      if (total > 0)
       {
-         String s = data.get(i);
-         total += Long.valueOf(s.substring(s.indexOf(" ") + 1));
+         prepare();
+         generate(tree.getRoot(), baseline != null ? baseline.getRoot() : null, 10.0, total);
       }
 
-      // Generate the boxes for each call stack
-      for (int i = 0; i < data.size(); i++)
+      for (int i = 0; i < FOOTER.length; i++)
       {
-         String s = data.get(i);
-         x = generate(writer, s, x, total);
+         writeLine(FOOTER[i]);
       }
 
-      NumberFormat nf = NumberFormat.getInstance(Locale.US);
-      nf.setMaximumFractionDigits(2);
-      generateBox(writer, "java", "(" + nf.format(total) + " bytes, 100%)", 10, 1093, 1185);
+      flush();
+   }
 
-      for (int i = 0; i < FOOTER.length; i++)
+   /**
+    * Fill in the size of the image in a header line
+    * @param s The line
+    * @return The line
+    */
+   private String header(String s)
+   {
+      if (s.indexOf('$') == -1)
+         return s;
+
+      s = s.replace("${height}", Integer.toString(height));
+      s = s.replace("${details}", Integer.toString(height - 17));
+      return s;
+   }
+
+   /**
+    * Get the depth of the visible part of a subtree
+    * @param node The node
+    * @param scale The number of pixels per unit
+    * @return The depth
+    */
+   private int depth(CallTree.Node node, double scale)
+   {
+      int depth = node.getDepth();
+
+      CallTree.Node[] children = node.getChildren();
+      for (int i = 0; i < children.length; i++)
       {
-         TextFile.append(writer, FOOTER[i]);
+         if (children[i] != null && children[i].getTotal(size) * scale >= minWidth)
+            depth = Math.max(depth, depth(children[i], scale));
       }
+
+      return depth;
    }
 
-   private int generate(BufferedWriter writer, String s, int x, long total) throws IOException
+   /**
+    * Escape the labels, and rank them by name. Done once, so the boxes can be
+    * written without creating strings
+    */
+   private void prepare()
    {
-      long cost = Long.valueOf(s.substring(s.indexOf(" ") + 1));
-      int width = (int)(1180 * (cost / (double)total));
+      int size = ft.size();
+      Integer[] ids = new Integer[size];
+
+      labels = new byte[size + 1][];
+      ends = new int[size + 1][];
+      ranks = new int[size + 1];
+      scratch = new long[0][];
+
+      for (int i = 0; i < size; i++)
+      {
+         ids[i] = Integer.valueOf(i);
+         escape(i, ft.getLabel(i));
+      }
+      escape(size, "java");
 
-      if (width > 0)
+      Arrays.sort(ids, new Comparator<Integer>()
       {
-         List<String> l = new ArrayList<>();
-         StringTokenizer st = new StringTokenizer(s.substring(0, s.indexOf(" ")), ";");
-         while (st.hasMoreTokens())
+         public int compare(Integer o1, Integer o2)
          {
-            l.add(st.nextToken());
+            return ft.getLabel(o1.intValue()).compareTo(ft.getLabel(o2.intValue()));
          }
+      });
 
-         NumberFormat nf = NumberFormat.getInstance(Locale.US);
-         nf.setMaximumFractionDigits(2);
+      for (int i = 0; i < size; i++)
+      {
+         ranks[ids[i].intValue()] = i;
+      }
+   }
 
-         StringBuilder sb = new StringBuilder();
-         sb.append("(");
-         sb.append(nf.format(cost));
-         sb.append(" bytes, ");
-         sb.append(nf.format(100 * (cost / (double)total)));
-         sb.append("%)");
-         String info = sb.toString();
+   /**
+    * Escape a label
+    * @param index The index
+    * @param s The label
+    */
+   private void escape(int index, String s)
+   {
+      StringBuilder sb = new StringBuilder(s.length() + 8);
+      boolean simple = true;
 
-         int startIndex = 1;
-         if (l.size() > 100)
+      for (int i = 0; i < s.length(); i++)
+      {
+         char c = s.charAt(i);
+
+         if (c == '<')
+         {
+            sb.append("&lt;");
+         }
+         else if (c == '>')
          {
-            startIndex = l.size() - 100;
+            sb.append("&gt;");
          }
-      
-         int y = 1077;
-         for (int i = startIndex; i < l.size(); i++)
+         else if (c == '&')
          {
-            String entry = l.get(i);
+            sb.append("&amp;");
+         }
+         else if (c == '"')
+         {
+            sb.append("&quot;");
+         }
+         else
+         {
+            sb.append(c);
+         }
+
+         if (c == '<' || c == '>' || c == '&' || c == '"' || c > 0x7F)
+            simple = false;
+      }
+
+      labels[index] = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+      if (!simple)
+      {
+         // The ends are by code point, so a label is never cut within a character
+         int[] e = new int[s.codePointCount(0, s.length())];
+         int offset = 0;
+         int n = 0;
 
-            generateBox(writer, entry, info, x, y, width);
-         
-            y -= 16;
+         for (int i = 0; i < s.length(); )
+         {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+
+            if (c == '<' || c == '>')
+            {
+               offset += 4;
+            }
+            else if (c == '&')
+            {
+               offset += 5;
+            }
+            else if (c == '"')
+            {
+               offset += 6;
+            }
+            else
+            {
+               offset += utf8Length(c);
+            }
+
+            e[n++] = offset;
          }
 
-         return x + width + 1;
+         ends[index] = e;
       }
+   }
+
+   /**
+    * Get the number of bytes of a code point in UTF-8
+    * @param c The code point
+    * @return The value; a lone surrogate is encoded as a single '?'
+    */
+   private static int utf8Length(int c)
+   {
+      if (c < 0x80 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+         return 1;
 
-      return x;
+      if (c < 0x800)
+         return 2;
+
+      return c < 0x10000 ? 3 : 4;
    }
 
-   private void generateBox(BufferedWriter writer,
-                            String s, String info,
-                            int x, int y, int width) throws IOException
+   /**
+    * Generate the box of a node, and then its children on top of it, ordered by name
+    * @param node The node
+    * @param base The same node of the baseline; null if there isn't one
+    * @param x The x position of the node
+    * @param total The total of the tree
+    */
+   private void generate(CallTree.Node node, CallTree.Node base, double x, long total) throws IOException
    {
-      s = s.replace("<", "&lt;");
-      s = s.replace(">", "&gt;");
+      long cost = node.getTotal(size);
+      double width = WIDTH * (cost / (double)total);
 
-      StringBuilder sb = new StringBuilder();
-      sb.append("<g>");
+      if (width < minWidth)
+         return;
+
+      int index = node.getParent() == null ? labels.length - 1 : node.getId();
+      int y = height - BOTTOM - node.getDepth() * FRAME_HEIGHT;
+
+      // The coalesced and the Filtered frames have no counterpart in the baseline
+      long previous = -1;
+      if (baseline != null && node.getId() != other && node.getId() != filtered)
+         previous = base != null ? Math.round(base.getTotal(size) * scale) : 0;
+
+      generateBox(index, cost, previous, total, x, y, width);
+
+      // Order the children by the rank of their name, using the scratch array of the level
+      CallTree.Node[] children = node.getChildren();
+      int depth = node.getDepth();
+      if (scratch.length <= depth)
+      {
+         scratch = Arrays.copyOf(scratch, depth + 16);
+      }
+      if (scratch[depth] == null || scratch[depth].length < children.length)
+      {
+         scratch[depth] = new long[Math.max(children.length, 16)];
+      }
+
+      long[] order = scratch[depth];
+      int count = 0;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null && children[i].getTotal(size) > 0)
+            order[count++] = ((long)ranks[children[i].getId()] << 32) | i;
+      }
+      Arrays.sort(order, 0, count);
+
+      for (int i = 0; i < count; i++)
+      {
+         CallTree.Node child = children[(int)order[i]];
+         generate(child, base != null ? base.getChild(child.getId()) : null, x, total);
+         x += WIDTH * (child.getTotal(size) / (double)total);
+      }
+   }
+
+   private void generateBox(int index, long cost, long previous, long total,
+                            double x, int y, double width) throws IOException
+   {
+      byte[] label = labels[index];
+      int[] end = ends[index];
 
       // <title>
-      sb.append("<title>");
-      sb.append(s);
-      sb.append(" ");
-      sb.append(info);
-      sb.append("</title>");
+      put(BOX_START);
+      put(label, label.length);
+      put(BOX_INFO);
+      putGrouped(cost);
+      put(size ? BOX_BYTES : BOX_COUNT);
+      putDecimal(100 * (cost / (double)total));
+
+      if (previous < 0)
+      {
+         put(BOX_INFO_END);
+      }
+      else if (previous == 0)
+      {
+         put(BOX_CHANGE);
+         put(BOX_NEW);
+      }
+      else
+      {
+         double change = 100 * ((cost - previous) / (double)previous);
+
+         put(BOX_CHANGE);
+         put(change < 0 ? (byte)'-' : (byte)'+');
+         putDecimal(Math.abs(change));
+         put(BOX_INFO_END);
+      }
 
       // <rect>
-      sb.append("<rect ");
-
-      sb.append("x=\"");
-      sb.append(x);
-      sb.append("\" ");
-
-      sb.append("y=\"");
-      sb.append(y);
-      sb.append("\" ");
-
-      sb.append("width=\"");
-      sb.append(width);
-      sb.append("\" ");
-
-      sb.append("height=\"");
-      sb.append("15.0");
-      sb.append("\" ");
-         
-      sb.append("fill=\"");
-      if (s.contains("/"))
+      put(BOX_RECT_X);
+      putDecimal(x);
+      put(BOX_RECT_Y);
+      putLong(y);
+      put(BOX_RECT_WIDTH);
+      putDecimal(width);
+      put(BOX_RECT_FILL);
+      if (baseline == null)
+      {
+         put(isJava(label) ? (isInlined(label) ? BOX_INLINED : BOX_JAVA) : BOX_OTHER);
+      }
+      else if (previous < 0)
       {
-         sb.append("rgb(71,219,71)");
+         put(BOX_NEUTRAL);
       }
       else
       {
-         sb.append("rgb(242,111,111)");
+         putColor(cost, previous);
       }
-      sb.append("\" ");
-
-      sb.append("rx=\"");
-      sb.append("2");
-      sb.append("\" ");
-         
-      sb.append("ry=\"");
-      sb.append("2");
-      sb.append("\" ");
-         
-      sb.append("/>");
 
       // <text>
-      sb.append("<text ");
+      put(BOX_TEXT_X);
+      putDecimal(x + 2);
+      put(BOX_TEXT_Y);
+      putLong(y + 10);
+      put(BOX_TEXT);
+
+      int chars = end != null ? end.length : label.length;
+      int fit = 0;
+      while ((fit + 1) * CHAR_WIDTH < width && fit < chars)
+      {
+         fit++;
+      }
 
-      sb.append("x=\"");
-      sb.append(x + 2);
-      sb.append("\" ");
+      int length = fit == 0 ? 0 : (end != null ? end[fit - 1] : fit);
+      if (length > 1)
+         put(label, length);
 
-      sb.append("y=\"");
-      sb.append(y + 10.5);
-      sb.append("\">");
+      put(BOX_END);
+   }
 
-      StringBuilder text = new StringBuilder();
-      double size = 0;
-      int i = 0;
-      while (size + 7.5 < width && i < s.length())
+   /**
+    * Is a label a Java frame
+    * @param label The label
+    * @return True if the label contains a package name, otherwise false
+    */
+   private static boolean isJava(byte[] label)
+   {
+      for (int i = 0; i < label.length; i++)
       {
-         char c = s.charAt(i);
-         text.append(c);
-         i++;
-
-         if (c == '&')
-         {
-            text.append(s.charAt(i));
-            text.append(s.charAt(i + 1));
-            text.append(s.charAt(i + 2));
-            i += 3;
-         }
-
-         size += 7.5;
+         if (label[i] == '/')
+            return true;
       }
 
-      if (text.length() > 1)
-         sb.append(text.toString());
-
-      sb.append("</text>");
+      return false;
+   }
 
-      sb.append("</g>");
+   /**
+    * Is a label an inlined frame
+    * @param label The label
+    * @return True if the label ends with the inlined frame type, otherwise false
+    */
+   private static boolean isInlined(byte[] label)
+   {
+      int n = label.length;
+      return n >= 4 && label[n - 4] == '_' && label[n - 3] == '[' && label[n - 2] == 'i' && label[n - 1] == ']';
+   }
 
-      TextFile.append(writer, sb.toString());
+   /**
+    * Put the color of a frame compared to the baseline; red when it has grown, and
+    * blue when it has shrunk, stronger the larger the change
+    * @param cost The value of the frame
+    * @param previous The normalized value of the frame in the baseline
+    */
+   private void putColor(long cost, long previous) throws IOException
+   {
+      double ratio = (cost - previous) / (double)Math.max(Math.max(cost, previous), 1);
+      long c = Math.round(255 - 200 * Math.abs(ratio));
+
+      put(BOX_RGB);
+      putLong(ratio > 0 ? 255 : c);
+      put((byte)',');
+      putLong(c);
+      put((byte)',');
+      putLong(ratio < 0 ? 255 : c);
+      put((byte)')');
    }
 
-   void writeTitle(BufferedWriter writer) throws IOException
+   private void writeTitle() throws IOException
    {
       StringBuilder sb = new StringBuilder();
       sb.append("<text id=\"title\" x=\"600.00\" y=\"24\">");
-      sb.append(title);
+      sb.append(escape(title));
       sb.append("</text>");
 
-      TextFile.append(writer, sb.toString());
+      writeLine(sb.toString());
+   }
+
+   /**
+    * Escape a text for XML, like the labels
+    * @param s The text
+    * @return The escaped text
+    */
+   static String escape(String s)
+   {
+      return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+   }
+
+   private void writeLine(String s) throws IOException
+   {
+      put(bytes(s + "\n"));
+   }
+
+   private void put(byte[] b) throws IOException
+   {
+      put(b, b.length);
+   }
+
+   private void put(byte[] b, int length) throws IOException
+   {
+      int offset = 0;
+
+      while (length > 0)
+      {
+         if (!buffer.hasRemaining())
+            flush();
+
+         int n = Math.min(length, buffer.remaining());
+         buffer.put(b, offset, n);
+         offset += n;
+         length -= n;
+      }
+   }
+
+   private void put(byte b) throws IOException
+   {
+      if (!buffer.hasRemaining())
+         flush();
+
+      buffer.put(b);
+   }
+
+   /**
+    * Put a positive number
+    * @param l The number
+    */
+   private void putLong(long l) throws IOException
+   {
+      if (l >= 10)
+         putLong(l / 10);
+
+      put((byte)('0' + l % 10));
+   }
+
+   /**
+    * Put a positive number with grouping, like 1,234,567
+    * @param l The number
+    */
+   private void putGrouped(long l) throws IOException
+   {
+      if (l >= 1000)
+      {
+         putGrouped(l / 1000);
+         put((byte)',');
+
+         long r = l % 1000;
+         if (r < 100)
+            put((byte)'0');
+         if (r < 10)
+            put((byte)'0');
+         putLong(r);
+      }
+      else
+      {
+         putLong(l);
+      }
+   }
+
+   /**
+    * Put a positive number with at most two decimals
+    * @param d The number
+    */
+   private void putDecimal(double d) throws IOException
+   {
+      long l = Math.round(d * 100);
+
+      putLong(l / 100);
+
+      long r = l % 100;
+      if (r != 0)
+      {
+         put((byte)'.');
+         put((byte)('0' + r / 10));
+         if (r % 10 != 0)
+            put((byte)('0' + r % 10));
+      }
+   }
+
+   private void flush() throws IOException
+   {
+      buffer.flip();
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+      buffer.clear();
+   }
+
+   private static byte[] bytes(String s)
+   {
+      return s.getBytes(StandardCharsets.UTF_8);
    }
 }
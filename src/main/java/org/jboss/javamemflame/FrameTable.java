@@ -0,0 +1,451 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table of interned frames. Methods and allocated classes are given an id, which
+ * is the same across chunks and files, so stacks can be represented as int arrays
+ */
+class FrameTable
+{
+   /** No thread frames */
+   static final int THREADS_NONE = 0;
+
+   /** A frame per thread */
+   static final int THREADS_THREAD = 1;
+
+   /** A frame per thread pool, where the numbers of the thread names are normalized */
+   static final int THREADS_POOL = 2;
+
+   /** The id of an excluded thread */
+   static final int EXCLUDED = -2;
+
+   /** No frame type */
+   static final int TYPE_NONE = 0;
+
+   /** Interpreted frame */
+   static final int TYPE_INTERPRETED = 1;
+
+   /** JIT compiled frame */
+   static final int TYPE_JIT = 2;
+
+   /** Inlined frame */
+   static final int TYPE_INLINED = 3;
+
+   /** Native frame */
+   static final int TYPE_NATIVE = 4;
+
+   /** The label suffix of each frame type */
+   private static final String[] TYPE_SUFFIX = {"", "_[0]", "_[j]", "_[i]", "_[n]"};
+
+   private Set<String> includes;
+   private int threadMode;
+   private Set<String> threadIncludes;
+   private Set<String> threadExcludes;
+   private ConcurrentMap<String, Integer> threads;
+   private boolean lines;
+   private boolean types;
+   private ConcurrentMap<Long, Integer> frames;
+   private ConcurrentMap<String, ConcurrentMap<String, Integer>> methods;
+   private ConcurrentMap<String, Integer> classes;
+   private ConcurrentMap<String, Integer> ids;
+   private volatile String[] labels;
+   private volatile boolean[] included;
+   private int size;
+   private int other;
+
+   FrameTable(Set<String> includes)
+   {
+      this.includes = includes;
+      this.threadMode = THREADS_NONE;
+      this.threadIncludes = null;
+      this.threadExcludes = null;
+      this.threads = new ConcurrentHashMap<>();
+      this.lines = false;
+      this.types = false;
+      this.frames = new ConcurrentHashMap<>();
+      this.methods = new ConcurrentHashMap<>();
+      this.classes = new ConcurrentHashMap<>();
+      this.ids = new ConcurrentHashMap<>();
+      this.labels = new String[1024];
+      this.included = new boolean[1024];
+      this.size = 0;
+      this.other = -1;
+   }
+
+   /**
+    * Get the id of a method
+    * @param className The class name
+    * @param methodName The method name
+    * @return The id
+    */
+   int method(String className, String methodName)
+   {
+      ConcurrentMap<String, Integer> m = methods.get(className);
+      if (m == null)
+      {
+         ConcurrentMap<String, Integer> newM = new ConcurrentHashMap<>();
+
+         m = methods.putIfAbsent(className, newM);
+         if (m == null)
+         {
+            m = newM;
+         }
+      }
+
+      Integer id = m.get(methodName);
+      if (id == null)
+      {
+         id = m.computeIfAbsent(methodName, k -> add(className.replace('.', '/') + ":." + k));
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * Set the granularity of the frames
+    * @param lines Include the line number, or the bytecode index when it isn't known
+    * @param types Include the frame type
+    */
+   void setDetail(boolean lines, boolean types)
+   {
+      this.lines = lines;
+      this.types = types;
+   }
+
+   /**
+    * Has line numbers
+    * @return True if the frames include line numbers, otherwise false
+    */
+   boolean hasLines()
+   {
+      return lines;
+   }
+
+   /**
+    * Has frame types
+    * @return True if the frames include frame types, otherwise false
+    */
+   boolean hasTypes()
+   {
+      return types;
+   }
+
+   /**
+    * Get the id of a frame of a method. The label is made from the label of the
+    * method, which is resolved once per method, so a frame only costs a lookup
+    * @param method The id of the method
+    * @param line The line number; -1 if unknown
+    * @param bci The bytecode index; -1 if unknown
+    * @param type The frame type
+    * @return The id
+    */
+   int frame(int method, int line, int bci, int type)
+   {
+      if (line < 0 && bci < 0 && type == TYPE_NONE)
+         return method;
+
+      // Lines fit in 28 bits, and bytecode indexes in 16 bits
+      long position = line >= 0 ? line : (bci >= 0 ? (1L << 28) | bci : (1L << 29) - 1);
+      Long key = Long.valueOf(((long)method << 32) | (position << 3) | type);
+
+      Integer id = frames.get(key);
+      if (id == null)
+      {
+         id = frames.computeIfAbsent(key, k ->
+         {
+            StringBuilder sb = new StringBuilder(labels[method]);
+
+            if (line >= 0)
+            {
+               sb.append(':').append(line);
+            }
+            else if (bci >= 0)
+            {
+               sb.append('@').append(bci);
+            }
+
+            sb.append(TYPE_SUFFIX[type]);
+
+            return add(sb.toString());
+         });
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * Set how threads are shown and filtered
+    * @param mode THREADS_NONE, THREADS_THREAD or THREADS_POOL
+    * @param includes The parts of the thread names to include; null for all
+    * @param excludes The parts of the thread names to exclude; null for none
+    */
+   void setThreads(int mode, Set<String> includes, Set<String> excludes)
+   {
+      this.threadMode = mode;
+      this.threadIncludes = includes;
+      this.threadExcludes = excludes;
+      this.threads.clear();
+   }
+
+   /**
+    * Has threads; either thread frames or a thread filter
+    * @return True if threads are used, otherwise false
+    */
+   boolean hasThreads()
+   {
+      return threadMode != THREADS_NONE || threadIncludes != null || threadExcludes != null;
+   }
+
+   /**
+    * Get the id of the frame of a thread. The result is cached per thread name
+    * @param name The thread name
+    * @return The id; CallTree.ROOT if there are no thread frames, or EXCLUDED
+    */
+   int thread(String name)
+   {
+      Integer id = threads.get(name);
+      if (id == null)
+      {
+         id = threads.computeIfAbsent(name, k -> Integer.valueOf(threadId(k)));
+      }
+
+      return id.intValue();
+   }
+
+   private int threadId(String name)
+   {
+      String pool = name.replaceAll("[0-9]+", "#");
+
+      if (threadIncludes != null && !matches(threadIncludes, name, pool))
+         return EXCLUDED;
+
+      if (threadExcludes != null && matches(threadExcludes, name, pool))
+         return EXCLUDED;
+
+      if (threadMode == THREADS_THREAD)
+         return name("[" + name + "]");
+
+      if (threadMode == THREADS_POOL)
+         return name("[" + pool + "]");
+
+      return CallTree.ROOT;
+   }
+
+   private static boolean matches(Set<String> s, String name, String pool)
+   {
+      for (String m : s)
+      {
+         if (name.contains(m) || pool.contains(m))
+            return true;
+      }
+
+      return false;
+   }
+
+   /**
+    * Get the id of an allocated class
+    * @param className The class name
+    * @return The id
+    */
+   int allocation(String className)
+   {
+      Integer id = classes.get(className);
+      if (id == null)
+      {
+         id = classes.computeIfAbsent(className, k -> add(translate(k)));
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * Get the id of a label, like Filtered or a label read from a profile
+    * @param label The label
+    * @return The id
+    */
+   int name(String label)
+   {
+      Integer id = ids.get(label);
+      if (id == null)
+      {
+         id = add(label);
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * Get the id of the frame the coalesced frames of a flame graph are shown as. The id
+    * is reserved, so it isn't the id of a frame with the same label, and isn't included
+    * @return The id
+    */
+   synchronized int other()
+   {
+      if (other < 0)
+      {
+         grow();
+         labels[size] = "other";
+         other = size++;
+      }
+
+      return other;
+   }
+
+   /**
+    * Get the label of an id
+    * @param id The id
+    * @return The label
+    */
+   String getLabel(int id)
+   {
+      return labels[id];
+   }
+
+   /**
+    * Is the id matched by the includes
+    * @param id The id
+    * @return True if included, otherwise false
+    */
+   boolean isIncluded(int id)
+   {
+      return included[id];
+   }
+
+   /**
+    * Has includes
+    * @return True if there are includes, otherwise false
+    */
+   boolean hasIncludes()
+   {
+      return includes != null && includes.size() > 0;
+   }
+
+   /**
+    * Get the number of ids
+    * @return The value
+    */
+   synchronized int size()
+   {
+      return size;
+   }
+
+   /**
+    * Add a label, unless it is already known
+    * @param label The label
+    * @return The id
+    */
+   private synchronized Integer add(String label)
+   {
+      Integer id = ids.get(label);
+      if (id != null)
+         return id;
+
+      grow();
+
+      if (hasIncludes())
+      {
+         for (String include : includes)
+         {
+            if (label.contains(include))
+            {
+               included[size] = true;
+               break;
+            }
+         }
+      }
+
+      labels[size] = label;
+      id = Integer.valueOf(size++);
+      ids.put(label, id);
+
+      return id;
+   }
+
+   /**
+    * Make room for another id
+    */
+   private void grow()
+   {
+      if (size == labels.length)
+      {
+         labels = Arrays.copyOf(labels, size * 2);
+         included = Arrays.copyOf(included, size * 2);
+      }
+   }
+
+   /**
+    * Translate from byte code name to human readable name
+    * @param input The input
+    * @return Human readable
+    */
+   private static String translate(String input)
+   {
+      int array = 0;
+      int i = 0;
+
+      StringBuilder sb = new StringBuilder();
+
+      while (input.charAt(i) == '[')
+      {
+         array++;
+         i++;
+      }
+
+      if (input.charAt(i) == 'Z')
+      {
+         sb.append("boolean");
+      }
+      else if (input.charAt(i) == 'B')
+      {
+         sb.append("byte");
+      }
+      else if (input.charAt(i) == 'C')
+      {
+         sb.append("char");
+      }
+      else if (input.charAt(i) == 'D')
+      {
+         sb.append("double");
+      }
+      else if (input.charAt(i) == 'F')
+      {
+         sb.append("float");
+      }
+      else if (input.charAt(i) == 'I')
+      {
+         sb.append("int");
+      }
+      else if (input.charAt(i) == 'J')
+      {
+         sb.append("long");
+      }
+      else if (input.charAt(i) == 'S')
+      {
+         sb.append("short");
+      }
+      else if (input.charAt(i) == 'L')
+      {
+         sb.append(input.substring(i + 1, input.length() - 1));
+      }
+      else
+      {
+         sb.append(input.substring(i));
+      }
+
+      for (int array_counter = 0; array_counter < array; array_counter++)
+      {
+         sb.append("[]");
+      }
+
+      return sb.toString();
+   }
+}
@@ -0,0 +1,231 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Heat map; the largest stacks over all windows as rows, and the windows as columns,
+ * where the color of a cell shows the value of the stack in the window
+ */
+class HeatMap
+{
+   /** The width of the image */
+   private static final int WIDTH = 1200;
+
+   /** The width of the stack labels */
+   private static final int LABEL_WIDTH = 400;
+
+   /** The height of a row */
+   private static final int ROW_HEIGHT = 16;
+
+   /** The space above the rows */
+   private static final int TOP = 60;
+
+   /** The space below the rows */
+   private static final int BOTTOM = 30;
+
+   /** The minimum space between the time labels */
+   private static final int TIME_SPACE = 60;
+
+   private String title;
+   private FrameTable ft;
+   private Timeline timeline;
+   private CallTree[] windows;
+   private boolean size;
+   private int rows;
+
+   /**
+    * Constructor
+    * @param title The title
+    * @param ft The frame table
+    * @param timeline The timeline
+    * @param windows The call trees of the windows, indexed by window; null for an empty window
+    * @param size Bytes or count
+    * @param rows The number of stacks
+    */
+   HeatMap(String title, FrameTable ft, Timeline timeline, CallTree[] windows, boolean size, int rows)
+   {
+      this.title = title;
+      this.ft = ft;
+      this.timeline = timeline;
+      this.windows = windows;
+      this.size = size;
+      this.rows = rows;
+   }
+
+   /**
+    * Write the heat map
+    * @param p The path of the file
+    */
+   void write(Path p) throws Exception
+   {
+      List<CallTree.Node> stacks = top();
+      long[][] values = new long[stacks.size()][windows.length];
+      long max = 1;
+
+      for (int r = 0; r < stacks.size(); r++)
+      {
+         int[] path = CallTree.path(stacks.get(r));
+         for (int c = 0; c < windows.length; c++)
+         {
+            CallTree.Node n = windows[c] != null ? find(windows[c], path) : null;
+            values[r][c] = n != null ? n.getSelf(size) : 0;
+            max = Math.max(max, values[r][c]);
+         }
+      }
+
+      double cell = (WIDTH - LABEL_WIDTH - 10) / (double)Math.max(windows.length, 1);
+      int step = (int)Math.ceil(TIME_SPACE / cell);
+      int height = TOP + stacks.size() * ROW_HEIGHT + BOTTOM;
+
+      BufferedWriter writer = TextFile.openFile(p);
+
+      TextFile.append(writer, "<?xml version=\"1.0\" standalone=\"no\"?>");
+      TextFile.append(writer, "<svg version=\"1.1\" width=\"" + WIDTH + "\" height=\"" + height +
+                      "\" viewBox=\"0 0 " + WIDTH + " " + height + "\" xmlns=\"http://www.w3.org/2000/svg\">");
+      TextFile.append(writer, "<style type=\"text/css\">");
+      TextFile.append(writer, "	text { font-family:Verdana; font-size:12px; fill:rgb(0,0,0); }");
+      TextFile.append(writer, "	#title { text-anchor:middle; font-size:17px}");
+      TextFile.append(writer, "	.time { font-size:10px; }");
+      TextFile.append(writer, "</style>");
+      TextFile.append(writer, "<rect x=\"0\" y=\"0\" width=\"" + WIDTH + "\" height=\"" + height + "\" fill=\"rgb(255,255,255)\" />");
+      TextFile.append(writer, "<text id=\"title\" x=\"" + (WIDTH / 2) + "\" y=\"24\">" + Flamegraph.escape(title) + "</text>");
+
+      for (int c = 0; c < windows.length; c += step)
+      {
+         TextFile.append(writer, "<text class=\"time\" x=\"" + format(LABEL_WIDTH + c * cell) + "\" y=\"" + (TOP - 6) + "\">" +
+                         (c * timeline.getWindow() / 1000.0) + "s</text>");
+      }
+
+      for (int r = 0; r < stacks.size(); r++)
+      {
+         CallTree.Node node = stacks.get(r);
+         int y = TOP + r * ROW_HEIGHT;
+
+         TextFile.append(writer, "<g><title>" + Flamegraph.escape(stack(node)) + "</title><text x=\"4\" y=\"" + (y + 12) + "\">" +
+                         Flamegraph.escape(name(node)) + "</text></g>");
+
+         for (int c = 0; c < windows.length; c++)
+         {
+            if (values[r][c] == 0)
+               continue;
+
+            long v = Math.round(255 - 230 * (values[r][c] / (double)max));
+
+            TextFile.append(writer, "<rect x=\"" + format(LABEL_WIDTH + c * cell) + "\" y=\"" + y +
+                            "\" width=\"" + format(cell) + "\" height=\"" + (ROW_HEIGHT - 1) +
+                            "\" fill=\"rgb(255," + v + "," + v + ")\"><title>" +
+                            Flamegraph.escape(name(node)) + ", " + timeline.getLabel(c) + ": " +
+                            String.format("%,d", values[r][c]) + (size ? " bytes" : " allocations") +
+                            "</title></rect>");
+         }
+      }
+
+      TextFile.append(writer, "<text x=\"4\" y=\"" + (height - 10) + "\">Maximum " + String.format("%,d", max) +
+                      (size ? " bytes" : " allocations") + " per " + timeline.getWindow() + " ms</text>");
+      TextFile.append(writer, "</svg>");
+
+      TextFile.closeFile(writer);
+   }
+
+   /**
+    * Get the largest stacks over all windows; stacks of the same value are ordered by
+    * their frame ids, so the rows don't depend on the order of the windows
+    * @return The nodes of the stacks in a tree of all windows
+    */
+   private List<CallTree.Node> top()
+   {
+      CallTree all = new CallTree();
+      for (CallTree w : windows)
+      {
+         if (w != null)
+            all.merge(w);
+      }
+
+      List<CallTree.Node> stacks = all.getStacks();
+      stacks.sort(new Comparator<CallTree.Node>()
+      {
+         public int compare(CallTree.Node o1, CallTree.Node o2)
+         {
+            int c = Long.compare(o2.getSelf(size), o1.getSelf(size));
+            if (c != 0)
+               return c;
+
+            return CallTree.compare(o1, o2);
+         }
+      });
+
+      List<CallTree.Node> l = new ArrayList<>(rows);
+      for (int i = 0; i < stacks.size() && l.size() < rows; i++)
+      {
+         if (stacks.get(i).getSelf(size) > 0)
+            l.add(stacks.get(i));
+      }
+
+      return l;
+   }
+
+   /**
+    * Find a stack in a tree
+    * @param tree The tree
+    * @param path The ids from the root
+    * @return The node; null if the stack isn't in the tree
+    */
+   private static CallTree.Node find(CallTree tree, int[] path)
+   {
+      CallTree.Node n = tree.getRoot();
+      for (int i = 0; i < path.length && n != null; i++)
+      {
+         n = n.getChild(path[i]);
+      }
+
+      return n;
+   }
+
+   /**
+    * Get the short name of a stack; the allocating method and the allocated class
+    * @param node The node of the stack
+    * @return The value
+    */
+   private String name(CallTree.Node node)
+   {
+      CallTree.Node parent = node.getParent();
+
+      if (parent == null || parent.getParent() == null)
+         return ft.getLabel(node.getId());
+
+      return ft.getLabel(parent.getId()) + ";" + ft.getLabel(node.getId());
+   }
+
+   /**
+    * Get the frames of a stack
+    * @param node The node of the stack
+    * @return The value
+    */
+   private String stack(CallTree.Node node)
+   {
+      StringBuilder sb = new StringBuilder();
+      for (CallTree.Node n = node; n.getParent() != null; n = n.getParent())
+      {
+         if (sb.length() > 0)
+            sb.insert(0, '\n');
+
+         sb.insert(0, ft.getLabel(n.getId()));
+      }
+
+      return sb.toString();
+   }
+
+   private static String format(double d)
+   {
+      return String.valueOf(Math.round(d * 100) / 100.0);
+   }
+}
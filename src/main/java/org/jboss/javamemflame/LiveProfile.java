@@ -0,0 +1,319 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Live profile; aggregates the allocation events of the running JVM into a call tree
+ * using a JFR event stream, and periodically writes the aggregated profile. Requires
+ * Java 14 or later.
+ *
+ * Events are added to a bucket, which is merged into the profile when it is closed.
+ * Closed buckets can be kept, so the profile of the recent past can be made from them
+ */
+public class LiveProfile
+{
+   /** The number of milliseconds of a bucket */
+   static final long BUCKET = 10000;
+
+   /** The maximum number of cached windows */
+   private static final int SNAPSHOTS = 16;
+
+   private Path output;
+   private boolean collapsed;
+   private long interval;
+   private String throttle;
+   private long history;
+   private FrameTable ft;
+   private CallTree tree;
+   private CallTree current;
+   private long currentStart;
+   private Deque<Bucket> buckets;
+   private long sequence;
+   private Map<Long, Snapshot> snapshots;
+   private ProcessEvent pe;
+   private RecordingStream rs;
+   private long lastWrite;
+
+   /**
+    * Constructor
+    * @param output The output file
+    * @param collapsed Write collapsed stacks, otherwise a profile
+    * @param interval The number of milliseconds between writes
+    * @param throttle The rate of the sampled allocation events, like 100/s; null for
+    *                 all allocation events
+    * @param history The number of milliseconds of buckets to keep; 0 for none
+    */
+   public LiveProfile(Path output, boolean collapsed, long interval, String throttle, long history)
+   {
+      this.output = output;
+      this.collapsed = collapsed;
+      this.interval = interval;
+      this.throttle = throttle;
+      this.history = history;
+      this.ft = new FrameTable(null);
+      this.tree = new CallTree();
+      this.current = new CallTree();
+      this.currentStart = System.currentTimeMillis();
+      this.buckets = new ArrayDeque<>();
+      this.sequence = 0;
+      this.snapshots = new HashMap<>();
+      this.pe = new ProcessEvent(current, ft, null);
+   }
+
+   /**
+    * Start streaming
+    */
+   public synchronized void start()
+   {
+      rs = new RecordingStream();
+
+      if (throttle != null)
+      {
+         rs.enable("jdk.ObjectAllocationSample").with("throttle", throttle).withStackTrace();
+      }
+      else
+      {
+         rs.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+         rs.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+      }
+
+      // The stack traces are cached by identity, so the events can't be reused
+      rs.setReuse(false);
+      rs.setOrdered(false);
+
+      rs.onEvent(this::process);
+      rs.onFlush(this::flush);
+
+      lastWrite = System.currentTimeMillis();
+
+      // The stream runs on a daemon thread, so it doesn't keep the JVM alive
+      RecordingStream s = rs;
+      Thread t = new Thread(s::start, "javamemflame-live");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Stop streaming, and write the profile
+    */
+   public void stop() throws IOException
+   {
+      RecordingStream s;
+
+      synchronized (this)
+      {
+         s = rs;
+         rs = null;
+      }
+
+      if (s != null)
+      {
+         s.close();
+         write();
+      }
+   }
+
+   /**
+    * Get the output file
+    * @return The value
+    */
+   public Path getOutput()
+   {
+      return output;
+   }
+
+   /**
+    * Get the number of allocation events
+    * @return The value
+    */
+   public synchronized long getEvents()
+   {
+      pe.flush();
+      return tree.getTotal(false) + current.getTotal(false);
+   }
+
+   /**
+    * Get the number of allocated bytes of the events
+    * @return The value
+    */
+   public synchronized long getBytes()
+   {
+      pe.flush();
+      return tree.getTotal(true) + current.getTotal(true);
+   }
+
+   /**
+    * Get the frame table
+    * @return The value
+    */
+   FrameTable getFrameTable()
+   {
+      return ft;
+   }
+
+   /**
+    * Get a copy of the profile. The buckets in the window are merged once per closed
+    * bucket, so repeated calls only merge the current bucket again
+    * @param window The number of milliseconds back in time, rounded to whole buckets;
+    *               0 for the whole profile
+    * @return The call tree
+    */
+   synchronized CallTree snapshot(long window)
+   {
+      CallTree result = new CallTree();
+
+      if (window <= 0)
+      {
+         result.merge(tree);
+      }
+      else
+      {
+         Snapshot s = snapshots.get(window);
+
+         if (s == null || s.sequence != sequence)
+         {
+            CallTree closed = new CallTree();
+            long from = System.currentTimeMillis() - window;
+
+            for (Bucket b : buckets)
+            {
+               if (b.start + BUCKET > from)
+                  closed.merge(b.tree);
+            }
+
+            if (snapshots.size() >= SNAPSHOTS)
+               snapshots.clear();
+
+            s = new Snapshot(sequence, closed);
+            snapshots.put(window, s);
+         }
+
+         result.merge(s.tree);
+      }
+
+      pe.flush();
+      result.merge(current);
+
+      return result;
+   }
+
+   /**
+    * Write the profile. The file is replaced atomically, so it can be read at any time
+    */
+   public synchronized void write() throws IOException
+   {
+      Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+      CallTree tree = snapshot(0);
+
+      if (collapsed)
+      {
+         BufferedWriter writer = TextFile.openFile(tmp);
+
+         for (CallTree.Node node : tree.getStacks())
+         {
+            TextFile.append(writer, ft, node, node.getSelf(true));
+         }
+
+         TextFile.closeFile(writer);
+      }
+      else
+      {
+         Profile.write(tmp, tree, ft);
+      }
+
+      Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      lastWrite = System.currentTimeMillis();
+   }
+
+   private synchronized void process(RecordedEvent re)
+   {
+      pe.process(re);
+   }
+
+   private synchronized void flush()
+   {
+      try
+      {
+         long now = System.currentTimeMillis();
+         if (now - currentStart >= BUCKET)
+            close(now);
+
+         if (interval > 0 && now - lastWrite >= interval)
+            write();
+      }
+      catch (IOException ioe)
+      {
+         System.err.println(ioe.getMessage());
+         ioe.printStackTrace();
+      }
+   }
+
+   /**
+    * Close the current bucket, and start a new one
+    * @param now The current time
+    */
+   private void close(long now)
+   {
+      pe.flush();
+      tree.merge(current);
+
+      if (history > 0)
+      {
+         buckets.addLast(new Bucket(currentStart, current));
+         while (buckets.size() > history / BUCKET)
+         {
+            buckets.removeFirst();
+         }
+      }
+
+      sequence++;
+      current = new CallTree();
+      currentStart = now;
+      pe.tree = current;
+   }
+
+   /**
+    * A closed bucket
+    */
+   private static class Bucket
+   {
+      private long start;
+      private CallTree tree;
+
+      Bucket(long start, CallTree tree)
+      {
+         this.start = start;
+         this.tree = tree;
+      }
+   }
+
+   /**
+    * The merged buckets of a window
+    */
+   private static class Snapshot
+   {
+      private long sequence;
+      private CallTree tree;
+
+      Snapshot(long sequence, CallTree tree)
+      {
+         this.sequence = sequence;
+         this.tree = tree;
+      }
+   }
+}
@@ -0,0 +1,264 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Live server; serves the live profile over HTTP on the loopback interface.
+ *
+ * <pre>
+ * /       or /svg : Flame graph
+ * /txt            : Collapsed stacks
+ * /jmf            : Profile
+ * </pre>
+ *
+ * with the query parameters window=X (the last X ms), n (count instead of bytes),
+ * include=X,Y (packages) and title=X
+ */
+public class LiveServer implements HttpHandler
+{
+   private LiveProfile profile;
+   private int port;
+   private HttpServer server;
+
+   /**
+    * Constructor
+    * @param profile The live profile
+    * @param port The port
+    */
+   public LiveServer(LiveProfile profile, int port)
+   {
+      this.profile = profile;
+      this.port = port;
+      this.server = null;
+   }
+
+   /**
+    * Start the server
+    */
+   public synchronized void start() throws Exception
+   {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/", this);
+
+      // The dispatcher thread inherits the daemon status of the thread starting the server,
+      // so it is started from a daemon thread in order to not keep the JVM alive
+      Thread t = new Thread(server::start, "javamemflame-http");
+      t.setDaemon(true);
+      t.start();
+      t.join();
+   }
+
+   /**
+    * Stop the server
+    */
+   public synchronized void stop()
+   {
+      if (server != null)
+      {
+         server.stop(0);
+         server = null;
+      }
+   }
+
+   /**
+    * Handle a request
+    * @param exchange The exchange
+    */
+   @Override
+   public void handle(HttpExchange exchange) throws IOException
+   {
+      try
+      {
+         String path = exchange.getRequestURI().getPath();
+         Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+
+         String format;
+         if ("/".equals(path) || "/svg".equals(path))
+         {
+            format = "svg";
+         }
+         else if ("/txt".equals(path))
+         {
+            format = "txt";
+         }
+         else if ("/jmf".equals(path))
+         {
+            format = "jmf";
+         }
+         else
+         {
+            send(exchange, 404, "Not found: " + path);
+            return;
+         }
+
+         boolean size = !query.containsKey("n");
+         long window = query.containsKey("window") ? Long.valueOf(query.get("window")) : 0;
+         String title = query.containsKey("title") ? query.get("title") : "Flamegraph";
+
+         FrameTable ft = profile.getFrameTable();
+         CallTree tree = profile.snapshot(window);
+
+         if (query.containsKey("include"))
+            tree = tree.filter(included(ft, query.get("include")));
+
+         if ("svg".equals(format))
+         {
+            exchange.getResponseHeaders().set("Content-Type", "image/svg+xml");
+            exchange.sendResponseHeaders(200, 0);
+
+            try (OutputStream os = exchange.getResponseBody())
+            {
+               Flamegraph flamegraph = new Flamegraph(title, ft, tree, size, 0.0, 0.0,
+                                                      Main.DEFAULT_MIN_WIDTH, Main.DEFAULT_MAX_ELEMENTS);
+               flamegraph.write(Channels.newChannel(os));
+            }
+         }
+         else if ("txt".equals(format))
+         {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+                                                                                  StandardCharsets.UTF_8), 8192))
+            {
+               for (CallTree.Node node : tree.getStacks())
+               {
+                  long value = node.getSelf(size);
+                  if (value != 0)
+                     TextFile.append(writer, ft, node, value);
+               }
+            }
+         }
+         else
+         {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+
+            try (OutputStream os = exchange.getResponseBody())
+            {
+               Profile.write(os, tree, ft);
+            }
+         }
+      }
+      catch (IOException ioe)
+      {
+         // The client has gone away
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+
+         try
+         {
+            send(exchange, 500, String.valueOf(e.getMessage()));
+         }
+         catch (IOException ioe)
+         {
+            // The response has already been started
+         }
+      }
+      finally
+      {
+         exchange.close();
+      }
+   }
+
+   /**
+    * Get the ids matched by a list of packages
+    * @param ft The frame table
+    * @param includes The packages, separated by ','
+    * @return The included ids, indexed by id
+    */
+   private static boolean[] included(FrameTable ft, String includes)
+   {
+      int labels = ft.size();
+      boolean[] included = new boolean[labels];
+
+      StringTokenizer st = new StringTokenizer(includes, ",");
+      while (st.hasMoreTokens())
+      {
+         String include = st.nextToken();
+         String method = include.replace('.', '/');
+
+         for (int i = 0; i < labels; i++)
+         {
+            String label = ft.getLabel(i);
+            if (label.contains(method) || label.contains(include))
+               included[i] = true;
+         }
+      }
+
+      return included;
+   }
+
+   /**
+    * Parse a query string
+    * @param query The query string
+    * @return The parameters
+    */
+   private static Map<String, String> parse(String query) throws IOException
+   {
+      Map<String, String> m = new HashMap<>();
+
+      if (query == null)
+         return m;
+
+      StringTokenizer st = new StringTokenizer(query, "&");
+      while (st.hasMoreTokens())
+      {
+         String token = st.nextToken();
+         int index = token.indexOf('=');
+
+         if (index == -1)
+         {
+            m.put(URLDecoder.decode(token, "UTF-8"), "");
+         }
+         else
+         {
+            m.put(URLDecoder.decode(token.substring(0, index), "UTF-8"),
+                  URLDecoder.decode(token.substring(index + 1), "UTF-8"));
+         }
+      }
+
+      return m;
+   }
+
+   /**
+    * Send a text response
+    * @param exchange The exchange
+    * @param status The status code
+    * @param text The text
+    */
+   private static void send(HttpExchange exchange, int status, String text) throws IOException
+   {
+      byte[] b = text.getBytes(StandardCharsets.UTF_8);
+
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, b.length);
+
+      try (OutputStream os = exchange.getResponseBody())
+      {
+         os.write(b);
+      }
+   }
+}
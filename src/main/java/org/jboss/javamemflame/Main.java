@@ -6,27 +6,25 @@
 package org.jboss.javamemflame;
 
 import java.io.BufferedWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import jdk.jfr.consumer.RecordedEvent;
 import jdk.jfr.consumer.RecordingFile;
 
@@ -35,42 +33,525 @@ import jdk.jfr.consumer.RecordingFile;
  */
 public class Main
 {
+   /** The number of events in a batch */
+   private static final int BATCH_SIZE = 1024;
+
+   /** The number of batches in the queue per worker */
+   private static final int QUEUE_FACTOR = 2;
+
+   /** The default number of nodes kept per file before they are merged */
+   private static final int DEFAULT_CAP = 65536;
+
+   /** The default minimum width of a frame in pixels */
+   static final double DEFAULT_MIN_WIDTH = 0.1;
+
+   /** The default maximum number of frames in a flame graph */
+   static final int DEFAULT_MAX_ELEMENTS = 50000;
+
+   /** The number of stacks in a heat map */
+   private static final int HEATMAP_ROWS = 20;
+
+   /** The number of milliseconds between the progress lines */
+   private static final long PROGRESS_INTERVAL = 10000;
+
+   /**
+    * Sort the stacks by value, and stacks of the same value by their frame ids
+    * @param stacks The stacks
+    * @param length The number of stacks
+    * @param size Bytes or count
+    */
+   static void sortByValue(CallTree.Node[] stacks, int length, boolean size)
+   {
+      Arrays.sort(stacks, 0, length, new Comparator<CallTree.Node>()
+      {
+         public int compare(CallTree.Node o1, CallTree.Node o2)
+         {
+            int c = Long.compare(o2.getSelf(size), o1.getSelf(size));
+            if (c != 0)
+               return c;
+
+            return CallTree.compare(o1, o2);
+         }
+      });
+   }
+
    /**
-    * Sort the map by value
-    * @param m The unsorted map
-    * @return The sorted map
+    * Select the stacks to show. Stacks under the cut off are removed first, and then
+    * all but the top stacks using a bounded heap. The removed stacks are added to
+    * the Filtered stack, which is last. Stacks of the same value are ranked by their
+    * frame ids, so the selection doesn't depend on the order of the tree
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param size Bytes or count
+    * @param cutoff The cut off
+    * @param top The number of stacks to keep; 0 for all
+    * @return The stacks
     */
-   private static Map<String, Long> sortByValue(Map<String, Long> m)
+   static List<CallTree.Node> select(CallTree tree, FrameTable ft, boolean size, long cutoff, int top)
    {
-      List<Map.Entry<String, Long>> l = new LinkedList<>(m.entrySet());
+      List<CallTree.Node> all = tree.getStacks();
+      CallTree.Node[] stacks = new CallTree.Node[all.size()];
+      long filteredBytes = 0;
+      long filteredCount = 0;
+      int length = 0;
+
+      for (CallTree.Node node : all)
+      {
+         if (node.getSelf(size) >= cutoff)
+         {
+            stacks[length++] = node;
+         }
+         else
+         {
+            filteredBytes += node.getSelf(true);
+            filteredCount += node.getSelf(false);
+            tree.remove(node);
+         }
+      }
+      all = null;
 
-      Collections.sort(l, new Comparator<Map.Entry<String, Long>>()
+      if (top > 0 && length > top)
       {
-         public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2)
+         // Min-heap of the top values in the first part of the array
+         long[] heap = new long[top];
+         for (int i = 0; i < top; i++)
          {
-            long l1 = o1.getValue().longValue();
-            long l2 = o2.getValue().longValue();
+            heap[i] = stacks[i].getSelf(size);
+            siftUp(heap, stacks, i);
+         }
+
+         for (int i = top; i < length; i++)
+         {
+            CallTree.Node node = stacks[i];
+            long value = node.getSelf(size);
 
-            if (l2 > l1)
+            if (value > heap[0] || (value == heap[0] && CallTree.compare(node, stacks[0]) < 0))
             {
-               return 1;
+               CallTree.Node evicted = stacks[0];
+               stacks[0] = node;
+               heap[0] = value;
+               siftDown(heap, stacks, top);
+               node = evicted;
             }
-            else if (l2 < l1)
+
+            filteredBytes += node.getSelf(true);
+            filteredCount += node.getSelf(false);
+            tree.remove(node);
+         }
+
+         length = top;
+      }
+
+      sortByValue(stacks, length, size);
+
+      List<CallTree.Node> l = new ArrayList<>(length + 1);
+      for (int i = 0; i < length; i++)
+      {
+         l.add(stacks[i]);
+      }
+
+      if (filteredBytes > 0 || filteredCount > 0)
+      {
+         Stats.FILTERED.add(filteredBytes);
+         l.add(tree.add(new int[0], ft.name("Filtered"), filteredBytes, filteredCount));
+      }
+
+      return l;
+   }
+
+   /**
+    * Is a stack of the heap ranked below another; a lower value, or the same value
+    * and later frame ids
+    */
+   private static boolean below(long[] heap, CallTree.Node[] nodes, int i, int j)
+   {
+      if (heap[i] != heap[j])
+         return heap[i] < heap[j];
+
+      return CallTree.compare(nodes[i], nodes[j]) > 0;
+   }
+
+   private static void siftUp(long[] heap, CallTree.Node[] nodes, int i)
+   {
+      while (i > 0)
+      {
+         int parent = (i - 1) / 2;
+         if (!below(heap, nodes, i, parent))
+            return;
+
+         swap(heap, nodes, i, parent);
+         i = parent;
+      }
+   }
+
+   private static void siftDown(long[] heap, CallTree.Node[] nodes, int length)
+   {
+      int i = 0;
+
+      while (true)
+      {
+         int smallest = i;
+         int left = 2 * i + 1;
+         int right = left + 1;
+
+         if (left < length && below(heap, nodes, left, smallest))
+            smallest = left;
+         if (right < length && below(heap, nodes, right, smallest))
+            smallest = right;
+         if (smallest == i)
+            return;
+
+         swap(heap, nodes, i, smallest);
+         i = smallest;
+      }
+   }
+
+   private static void swap(long[] heap, CallTree.Node[] nodes, int i, int j)
+   {
+      long l = heap[i];
+      heap[i] = heap[j];
+      heap[j] = l;
+
+      CallTree.Node n = nodes[i];
+      nodes[i] = nodes[j];
+      nodes[j] = n;
+   }
+
+   /**
+    * Process a recording using a reader thread and a number of workers. The events
+    * are handed out in batches through a bounded queue, so the reader blocks when
+    * the workers are behind
+    * @param rcf The recording
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param timeline The timeline; null for all events
+    * @param spill The spill; null to keep everything in memory
+    * @param threads The number of workers
+    */
+   private static void processParallel(RecordingFile rcf, CallTree tree,
+                                       FrameTable ft, Timeline timeline, Spill spill, int threads)
+      throws Exception
+   {
+      BlockingQueue<List<RecordedEvent>> queue = new ArrayBlockingQueue<>(threads * QUEUE_FACTOR);
+      Thread[] workers = new Thread[threads];
+      CallTree[] trees = new CallTree[threads];
+
+      for (int i = 0; i < threads; i++)
+      {
+         trees[i] = new CallTree();
+         workers[i] = new Thread(new ProcessEvent(trees[i], ft, timeline, spill, queue), "javamemflame-" + i);
+         workers[i].start();
+      }
+
+      try
+      {
+         List<RecordedEvent> batch = new ArrayList<>(BATCH_SIZE);
+         while (rcf.hasMoreEvents())
+         {
+            batch.add(rcf.readEvent());
+
+            if (batch.size() == BATCH_SIZE)
             {
-               return -1;
+               queue.put(batch);
+               batch = new ArrayList<>(BATCH_SIZE);
             }
+         }
 
-            return 0;
+         if (!batch.isEmpty())
+            queue.put(batch);
+      }
+      finally
+      {
+         // An empty batch tells a worker to stop
+         for (int i = 0; i < threads; i++)
+         {
+            queue.put(Collections.emptyList());
          }
-      });
 
-      Map<String, Long> sorted = new LinkedHashMap<>();
-      for (Map.Entry<String, Long> entry : l)
+         for (int i = 0; i < threads; i++)
+         {
+            workers[i].join();
+            tree.merge(trees[i]);
+
+            if (spill != null)
+               spill.check(tree);
+         }
+      }
+   }
+
+   /**
+    * Process the chunks of a recording in parallel. Each chunk is decoded by its own
+    * RecordingFile into a local tree, which is merged into the call tree afterwards
+    * @param chunks The chunks
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param timeline The timeline; null for all events
+    * @param spill The spill; null to keep everything in memory
+    * @param threads The number of threads
+    */
+   private static void processChunks(List<Chunk> chunks, CallTree tree,
+                                     FrameTable ft, Timeline timeline, Spill spill, int threads)
+      throws Exception
+   {
+      ExecutorService es = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+
+      try
+      {
+         List<Future<?>> futures = new ArrayList<>(chunks.size());
+
+         for (Chunk chunk : chunks)
+         {
+            futures.add(es.submit(() ->
+            {
+               Path p = chunk.extract();
+               try (RecordingFile rcf = new RecordingFile(p))
+               {
+                  CallTree local = new CallTree();
+                  ProcessEvent pe = new ProcessEvent(local, ft, timeline, spill, null);
+                  while (rcf.hasMoreEvents())
+                  {
+                     pe.process(rcf.readEvent());
+                  }
+                  pe.flush();
+
+                  tree.merge(local);
+
+                  if (spill != null)
+                     spill.check(tree);
+               }
+               finally
+               {
+                  Files.deleteIfExists(p);
+               }
+               return null;
+            }));
+         }
+
+         for (Future<?> f : futures)
+         {
+            f.get();
+         }
+      }
+      finally
+      {
+         es.shutdownNow();
+      }
+   }
+
+   /**
+    * Process the files concurrently on a work-stealing pool. Each file, or chunk of a
+    * file, is aggregated locally and merged into the call tree whenever its number
+    * of nodes goes above the cap, so memory usage doesn't scale with the number
+    * of files
+    * @param paths The files
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param timeline The timeline; null for all events
+    * @param spill The spill; null to keep everything in memory
+    * @param threads The number of threads
+    * @param cap The maximum number of nodes per file before a merge
+    */
+   private static void processFiles(List<Path> paths, CallTree tree,
+                                    FrameTable ft, Timeline timeline, Spill spill, int threads, int cap)
+   {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+
+      try
+      {
+         List<ProcessFile> tasks = new ArrayList<>(paths.size());
+         for (Path path : paths)
+         {
+            tasks.add(new ProcessFile(tree, ft, timeline, spill, cap, path));
+         }
+
+         for (ProcessFile task : tasks)
+         {
+            pool.execute(task);
+         }
+
+         for (ProcessFile task : tasks)
+         {
+            task.join();
+         }
+      }
+      finally
+      {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Process recordings and profiles into a call tree
+    * @param paths The .jfr and .jmf files
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param timeline The timeline; null for all events
+    * @param spill The spill; null to keep everything in memory
+    * @param threads The number of threads
+    * @param files Process the files concurrently
+    * @param cap The maximum number of nodes per file before a merge
+    */
+   private static void process(List<Path> paths, CallTree tree, FrameTable ft, Timeline timeline,
+                               Spill spill, int threads, boolean files, int cap)
+      throws Exception
+   {
+      List<Path> recordings = new ArrayList<>();
+      List<Path> profiles = new ArrayList<>();
+      for (Path path : paths)
+      {
+         if (path.toString().endsWith(".jmf"))
+         {
+            profiles.add(path);
+         }
+         else
+         {
+            recordings.add(path);
+         }
+      }
+
+      if (files && threads > 1 && recordings.size() > 1)
+      {
+         processFiles(recordings, tree, ft, timeline, spill, threads, cap);
+         recordings.clear();
+      }
+
+      for (Path path : recordings)
+      {
+         List<Chunk> chunks = null;
+         if (threads > 1)
+            chunks = Chunk.find(path);
+
+         if (chunks != null && chunks.size() > 1)
+         {
+            processChunks(chunks, tree, ft, timeline, spill, threads);
+         }
+         else
+         {
+            RecordingFile rcf = new RecordingFile(path);
+
+            if (threads > 1)
+            {
+               processParallel(rcf, tree, ft, timeline, spill, threads);
+            }
+            else
+            {
+               ProcessEvent pe = new ProcessEvent(tree, ft, timeline, spill, null);
+               while (rcf.hasMoreEvents())
+               {
+                  pe.process(rcf.readEvent());
+               }
+               pe.flush();
+            }
+
+            rcf.close();
+         }
+      }
+
+      for (Path path : profiles)
+      {
+         Profile.read(path, tree, ft);
+
+         if (spill != null)
+            spill.check(tree);
+      }
+   }
+
+   /**
+    * Split a list of names
+    * @param s The names, separated by ','
+    * @return The names
+    */
+   private static Set<String> split(String s)
+   {
+      Set<String> names = new HashSet<>();
+
+      StringTokenizer st = new StringTokenizer(s, ",");
+      while (st.hasMoreTokens())
       {
-         sorted.put(entry.getKey(), entry.getValue());
+         names.add(st.nextToken());
       }
 
-      return sorted;
+      return names;
+   }
+
+   /**
+    * Write a call tree in a format
+    * @param output The path of the file
+    * @param format The format
+    * @param title The title
+    * @param tree The call tree; empty when the stacks are in the runs of the spill
+    * @param ft The frame table
+    * @param spill The spill; null to keep everything in memory
+    * @param size Bytes or count
+    * @param cutoff The cut off
+    * @param top The number of stacks to keep; 0 for all
+    * @param minPercent The minimum percentage of the total for a frame
+    * @param minParent The minimum percentage of the parent for a frame
+    * @param minWidth The minimum width of a frame in pixels
+    * @param maxElements The maximum number of frames
+    */
+   private static void write(Path output, String format, String title, CallTree tree, FrameTable ft,
+                             Spill spill, boolean size, long cutoff, int top,
+                             double minPercent, double minParent, double minWidth, int maxElements)
+      throws Exception
+   {
+      boolean runs = spill != null && spill.hasRuns();
+
+      if ("jmf".equals(format))
+      {
+         if (runs)
+         {
+            // The nodes go straight from the runs to the file
+            Stats.Phase phase = Stats.begin("merge");
+            spill.write(output, ft);
+            Stats.end(phase);
+         }
+         else
+         {
+            Profile.write(output, tree, ft);
+         }
+         return;
+      }
+
+      if (runs && top <= 0 && "txt".equals(format))
+      {
+         // All stacks are written, so they go straight from the runs to the file
+         Stats.Phase phase = Stats.begin("merge");
+         BufferedWriter writer = TextFile.openFile(output);
+         spill.write(writer, ft, size, cutoff);
+         TextFile.closeFile(writer);
+         Stats.end(phase);
+         return;
+      }
+
+      Stats.Phase phase = Stats.begin(runs ? "merge" : "select");
+      List<CallTree.Node> stacks = runs ? spill.select(tree, ft, size, cutoff, top) : select(tree, ft, size, cutoff, top);
+      Stats.end(phase);
+
+      phase = Stats.begin("write");
+      if ("svg".equals(format))
+      {
+         Flamegraph flamegraph = new Flamegraph(title, ft, tree, size, minPercent, minParent, minWidth, maxElements);
+         try (FileChannel fc = FileChannel.open(output,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING))
+         {
+            flamegraph.write(fc);
+         }
+      }
+      else
+      {
+         BufferedWriter writer = TextFile.openFile(output);
+
+         for (CallTree.Node node : stacks)
+         {
+            TextFile.append(writer, ft, node, node.getSelf(size));
+         }
+
+         TextFile.closeFile(writer);
+      }
+      Stats.end(phase);
    }
 
    /**
@@ -85,21 +566,66 @@ public class Main
          {
             System.out.println("javamemflame: Recording flamegraph data for Java memory allocations");
             System.out.println("");
-            System.out.println("Usage: java -jar javamemflame.jar [-o svg|txt] [--title text] [-n] [-t num] <file_name> [include[,include]*]");
+            System.out.println("Usage: java -jar javamemflame.jar [options] <file_name.jfr|jmf>+ [include[,include]*]");
+            System.out.println("");
+            System.out.println("Options:");
+            System.out.println("  -o svg|txt|jmf       : Output format");
+            System.out.println("  --title text         : Title of the flame graph");
+            System.out.println("  -n                   : Allocation counts instead of sizes");
+            System.out.println("  -c num               : Cut off stacks under num");
+            System.out.println("  --top num            : Only the num largest stacks");
+            System.out.println("  -t num               : Number of threads");
+            System.out.println("  -f                   : Process the files concurrently");
+            System.out.println("  --cap num            : Nodes per file before a merge");
+            System.out.println("  --memory mb          : Memory for the call trees before they are spilled to disk");
+            System.out.println("  --min-percent pct    : Coalesce frames under pct of the total");
+            System.out.println("  --min-parent pct     : Coalesce frames under pct of their parent");
+            System.out.println("  --min-width px       : Coalesce frames narrower than px");
+            System.out.println("  --max-elements num   : Maximum number of frames in the flame graph");
+            System.out.println("  -b file              : Baseline .jfr or .jmf file to compare against");
+            System.out.println("  --from ms            : Skip the first ms of the recordings");
+            System.out.println("  --to ms              : Skip everything after ms of the recordings");
+            System.out.println("  --window ms          : A flame graph per ms, and a heat map of the top stacks");
+            System.out.println("  --thread             : A root frame per thread");
+            System.out.println("  --pool               : A root frame per thread pool");
+            System.out.println("  --include-thread x,y : Only threads whose name contains x or y");
+            System.out.println("  --exclude-thread x,y : Skip threads whose name contains x or y");
+            System.out.println("  --lines              : Frames per line number");
+            System.out.println("  --types              : Frames per frame type; interpreted, JIT compiled or inlined");
+            System.out.println("  --progress           : Write a progress line every 10 seconds");
+            System.out.println("  --stats              : Write the phases and the counters as JSON");
             return;
          }
 
          int i = 0;
-         boolean svg = true;
+         String format = "svg";
          String title = "Flamegraph";
          int threads = 1;
+         boolean files = false;
+         int cap = DEFAULT_CAP;
+         long memory = 0;
          boolean size = true;
          int cutoff = 0;
-         long filtered = 0;
-         long pid = 0;
+         double minPercent = 0.0;
+         double minParent = 0.0;
+         double minWidth = DEFAULT_MIN_WIDTH;
+         int maxElements = DEFAULT_MAX_ELEMENTS;
+         int top = 0;
+         long from = 0;
+         long to = 0;
+         long window = 0;
+         String pid = "0";
          Set<String> includes = null;
-         ConcurrentMap<Frame, AtomicLong> allocs = new ConcurrentHashMap<>();
+         int threadMode = FrameTable.THREADS_NONE;
+         Set<String> threadIncludes = null;
+         Set<String> threadExcludes = null;
+         boolean lines = false;
+         boolean types = false;
+         boolean progress = false;
+         boolean stats = false;
+         CallTree tree = new CallTree();
          List<Path> paths = new ArrayList<>();
+         List<Path> baselines = new ArrayList<>();
 
          for (i = 0; i < args.length; i++)
          {
@@ -112,22 +638,115 @@ public class Main
                i++;
                cutoff = Integer.valueOf(args[i]);
             }
+            else if ("--top".equals(args[i]))
+            {
+               i++;
+               top = Integer.valueOf(args[i]);
+            }
+            else if ("--min-percent".equals(args[i]))
+            {
+               i++;
+               minPercent = Double.valueOf(args[i]);
+            }
+            else if ("--min-parent".equals(args[i]))
+            {
+               i++;
+               minParent = Double.valueOf(args[i]);
+            }
+            else if ("--min-width".equals(args[i]))
+            {
+               i++;
+               minWidth = Double.valueOf(args[i]);
+            }
+            else if ("--max-elements".equals(args[i]))
+            {
+               i++;
+               maxElements = Integer.valueOf(args[i]);
+            }
             else if ("-t".equals(args[i]))
             {
                i++;
                threads = Integer.valueOf(args[i]);
             }
+            else if ("-f".equals(args[i]))
+            {
+               files = true;
+            }
+            else if ("--cap".equals(args[i]))
+            {
+               i++;
+               cap = Integer.valueOf(args[i]);
+            }
+            else if ("--memory".equals(args[i]))
+            {
+               i++;
+               memory = Long.valueOf(args[i]);
+            }
             else if ("-o".equals(args[i]))
             {
                i++;
-               svg = "svg".equals(args[i]);
+               format = args[i];
+            }
+            else if ("-b".equals(args[i]) || "--baseline".equals(args[i]))
+            {
+               i++;
+               baselines.add(Paths.get(args[i]));
+            }
+            else if ("--from".equals(args[i]))
+            {
+               i++;
+               from = Long.valueOf(args[i]);
+            }
+            else if ("--to".equals(args[i]))
+            {
+               i++;
+               to = Long.valueOf(args[i]);
+            }
+            else if ("--window".equals(args[i]))
+            {
+               i++;
+               window = Long.valueOf(args[i]);
+            }
+            else if ("--thread".equals(args[i]))
+            {
+               threadMode = FrameTable.THREADS_THREAD;
+            }
+            else if ("--pool".equals(args[i]))
+            {
+               threadMode = FrameTable.THREADS_POOL;
+            }
+            else if ("--include-thread".equals(args[i]))
+            {
+               i++;
+               threadIncludes = split(args[i]);
+            }
+            else if ("--exclude-thread".equals(args[i]))
+            {
+               i++;
+               threadExcludes = split(args[i]);
+            }
+            else if ("--lines".equals(args[i]))
+            {
+               lines = true;
+            }
+            else if ("--types".equals(args[i]))
+            {
+               types = true;
+            }
+            else if ("--progress".equals(args[i]))
+            {
+               progress = true;
+            }
+            else if ("--stats".equals(args[i]))
+            {
+               stats = true;
             }
             else if ("--title".equals(args[i]))
             {
                i++;
                title = args[i];
             }
-            else if (args[i].endsWith(".jfr"))
+            else if (args[i].endsWith(".jfr") || args[i].endsWith(".jmf"))
             {
                Path path = Paths.get(args[i]);
                paths.add(path);
@@ -147,119 +766,192 @@ public class Main
             }
          }
 
+         if (!"svg".equals(format) && !"txt".equals(format) && !"jmf".equals(format))
+         {
+            System.out.println("javamemflame: Unknown output format " + format);
+            return;
+         }
+
          if (paths.size() == 0)
          {
-            System.out.println("javamemflame: No .jfr files specified");
+            System.out.println("javamemflame: No .jfr or .jmf files specified");
             return;
          }
          else if (paths.size() == 1)
          {
             String file = paths.get(0).toFile().getName();
             if (file.indexOf("-") != -1 && file.indexOf(".") != -1)
-               pid = Long.valueOf(file.substring(file.indexOf("-") + 1, file.indexOf(".")));
+               pid = file.substring(file.indexOf("-") + 1, file.indexOf("."));
          }
 
-         BufferedWriter writer;
-         if (svg)
-         {
-            writer = TextFile.openFile(Paths.get("javamemflame-" + pid + ".svg"));
-         }
-         else
-         {
-            writer = TextFile.openFile(Paths.get("javamemflame-" + pid + ".txt"));
-         }
+         FrameTable ft = new FrameTable(includes);
+         ft.setThreads(threadMode, threadIncludes, threadExcludes);
+         ft.setDetail(lines, types);
 
-         for (Path path : paths)
-         {
-            RecordingFile rcf = new RecordingFile​(path);
+         Path output = Paths.get("javamemflame-" + pid + "." + format);
 
-            if (threads > 1)
+         Timeline timeline = null;
+         if (from > 0 || to > 0 || window > 0)
+         {
+            for (Path path : paths)
             {
-               ExecutorService es = Executors.newFixedThreadPool(threads);
-
-               while (rcf.hasMoreEvents())
+               if (path.toString().endsWith(".jmf"))
                {
-                  RecordedEvent re = rcf.readEvent();
-                  ProcessEvent pe = new ProcessEvent(allocs, includes, size, re);
-                  es.submit(pe);
+                  System.out.println("javamemflame: " + path + " has no times");
+                  return;
                }
+            }
 
-               es.shutdown();
-               es.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            if (window > 0 && baselines.size() > 0)
+            {
+               System.out.println("javamemflame: --window can't be used with a baseline");
+               return;
             }
-            else
+
+            timeline = Timeline.create(ft, paths, from, to, window);
+
+            if (timeline.getWindows() > Timeline.MAX_WINDOWS)
             {
-               while (rcf.hasMoreEvents())
-               {
-                  RecordedEvent re = rcf.readEvent();
-                  ProcessEvent pe = new ProcessEvent(allocs, includes, size, re);
-                  pe.run();
-               }
+               System.out.println("javamemflame: --window " + window + " gives " + timeline.getWindows() +
+                                  " windows, more than " + Timeline.MAX_WINDOWS);
+               return;
             }
+         }
 
-            rcf.close();
+         if (baselines.size() > 0 && "jmf".equals(format))
+         {
+            System.out.println("javamemflame: A diff can't be written as jmf");
+            return;
          }
 
-         Map<String, Long> folded = new HashMap<>();
-         for (Map.Entry<Frame, AtomicLong> entry : allocs.entrySet())
+         Spill spill = null;
+         if (memory > 0)
          {
-            String key = entry.getKey().toString();
-            Long l = folded.get(key);
+            if (baselines.size() > 0 || window > 0)
+            {
+               System.out.println("javamemflame: --memory can't be used with a baseline or --window");
+               return;
+            }
 
-            if (l == null)
-               l = Long.valueOf(0);
+            // A flame graph is made from a call tree, which would hold all stacks again
+            if ("svg".equals(format) && top <= 0 && cutoff <= 0)
+            {
+               System.out.println("javamemflame: --memory needs --top or -c for svg");
+               return;
+            }
 
-            l = Long.valueOf(l.longValue() + entry.getValue().get());
-            folded.put(key, l);
+            // The memory is shared by the tree of each thread and the tree they are merged into
+            spill = new Spill((int)Math.min(memory * 1024 * 1024 / Spill.NODE_SIZE / (threads + 1), Integer.MAX_VALUE));
          }
 
-         List<String> svgData = new ArrayList<>();
-         for (Map.Entry<String, Long> entry : sortByValue(folded).entrySet())
+         if (progress)
+            Stats.startProgress(PROGRESS_INTERVAL);
+
+         try
          {
-            long value = entry.getValue().longValue();
+            Stats.Phase phase = Stats.begin("process");
+            process(paths, tree, ft, timeline, spill, threads, files, cap);
+            Stats.end(phase);
+
+            // With runs the sizes are taken once the runs are merged
+            if (stats && (spill == null || !spill.hasRuns()))
+               Stats.sizes(tree.getStackCount(), tree.size(), ft.size());
 
-            if (value >= cutoff)
+            if (baselines.size() > 0)
             {
-               String s = entry.getKey() + " " + value;
-               if (svg)
+               CallTree baseline = new CallTree();
+               phase = Stats.begin("baseline");
+               process(baselines, baseline, ft, timeline != null ? Timeline.create(ft, baselines, from, to, 0) : null,
+                       null, threads, files, cap);
+               Stats.end(phase);
+
+               // The delta table is made before the flame graph prunes the tree
+               phase = Stats.begin("diff");
+               Diff diff = new Diff(baseline, tree, size);
+               diff.write(Paths.get("javamemflame-" + pid + "-delta.txt"), ft);
+               Stats.end(phase);
+
+               if ("svg".equals(format))
                {
-                  svgData.add(s);
+                  // The same stacks are shown as without a baseline
+                  phase = Stats.begin("select");
+                  select(tree, ft, size, cutoff, top);
+                  Stats.end(phase);
+
+                  phase = Stats.begin("write");
+                  Flamegraph flamegraph = new Flamegraph(title, ft, tree, size, minPercent, minParent, minWidth, maxElements);
+                  flamegraph.setBaseline(baseline);
+                  try (FileChannel fc = FileChannel.open(output,
+                                                         StandardOpenOption.CREATE,
+                                                         StandardOpenOption.WRITE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING))
+                  {
+                     flamegraph.write(fc);
+                  }
+                  Stats.end(phase);
                }
                else
                {
-                  TextFile.append(writer, s);
+                  write(output, format, title, tree, ft, null, size, cutoff, top,
+                        minPercent, minParent, minWidth, maxElements);
                }
             }
-            else
+            else if (timeline != null && window > 0)
             {
-               filtered += value;
-            }
-         }
+               CallTree[] windows = new CallTree[timeline.size()];
+               for (int w = 0; w < windows.length; w++)
+               {
+                  int id = timeline.getId(w);
+                  if (id >= 0)
+                     windows[w] = tree.extract(id);
+               }
+               tree = null;
 
-         if (filtered > 0)
-         {
-            StringBuilder sb = new StringBuilder();
-            sb.append("java;Filtered ");
-            sb.append(filtered);
+               // The heat map is made before the flame graphs remove and prune stacks
+               phase = Stats.begin("heatmap");
+               HeatMap heatMap = new HeatMap(title, ft, timeline, windows, size, HEATMAP_ROWS);
+               heatMap.write(Paths.get("javamemflame-" + pid + "-heatmap.svg"));
+               Stats.end(phase);
 
-            String s = sb.toString();
-            if (svg)
-            {
-               svgData.add(s);
+               for (int w = 0; w < windows.length; w++)
+               {
+                  if (windows[w] != null)
+                  {
+                     write(Paths.get(String.format("javamemflame-%s-window-%04d.%s", pid, w, format)), format,
+                           title + " (" + timeline.getLabel(w) + ")", windows[w], ft, null, size, cutoff, top,
+                           minPercent, minParent, minWidth, maxElements);
+                     windows[w] = null;
+                  }
+               }
             }
             else
             {
-               TextFile.append(writer, s);
+               if (spill != null && spill.hasRuns())
+               {
+                  // The rest of the stacks are spilled too, so the runs hold all of them
+                  spill.write(tree);
+                  tree.clear();
+               }
+
+               write(output, format, title, tree, ft, spill, size, cutoff, top,
+                     minPercent, minParent, minWidth, maxElements);
+
+               if (stats && spill != null && spill.hasRuns())
+                  Stats.sizes(spill.getStackCount(), spill.getPeakNodes(), ft.size());
             }
          }
-
-         if (svg)
+         finally
          {
-            Flamegraph flamegraph = new Flamegraph(title, svgData);
-            flamegraph.write(writer);
+            Stats.stopProgress();
+
+            if (spill != null)
+               spill.close();
          }
-         
-         TextFile.closeFile(writer);
+
+         Stats.commit();
+
+         if (stats)
+            Stats.write(Paths.get("javamemflame-" + pid + "-stats.json"));
       }
       catch (Exception e)
       {
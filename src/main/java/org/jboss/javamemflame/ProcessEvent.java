@@ -5,76 +5,450 @@
  */
 package org.jboss.javamemflame;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import jdk.jfr.consumer.RecordedClass;
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
 import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
 
 /**
- * Process event
+ * Process event; adds allocation events to a call tree owned by this instance.
+ *
+ * The events are counted per stack, allocated class and prefix in counter tables first,
+ * so an event doesn't walk the call tree or allocate. The counters are added to the
+ * call tree by flush, which is done when the tables are full, and must be done before
+ * the call tree is used
  */
 class ProcessEvent implements Runnable
 {
-   ConcurrentMap<Frame, AtomicLong> allocs;
-   Set<String> includes;
-   boolean size;
-   RecordedEvent re;
+   /** The maximum number of stack traces in the cache */
+   private static final int CACHE_SIZE = 4096;
+
+   /** The maximum number of counters or stacks before they are flushed */
+   private static final int FLUSH_SIZE = 65536;
+
+   /** The number of events between checks of the tree size, when spilling */
+   private static final int CHECK_INTERVAL = 1024;
 
-   ProcessEvent(ConcurrentMap<Frame, AtomicLong> allocs, Set<String> includes, boolean size, RecordedEvent re)
+   CallTree tree;
+   FrameTable ft;
+   Timeline timeline;
+   Spill spill;
+   BlockingQueue<List<RecordedEvent>> queue;
+   Map<RecordedStackTrace, Integer> stacks;
+   Map<RecordedThread, Integer> threads;
+   Map<Stack, Integer> interned;
+   List<int[]> ids;
+   CounterTable prefixes;
+   CounterTable paths;
+   CounterTable counters;
+   int[] prefix;
+   int[] scratch;
+   Stack probe;
+   int events;
+
+   ProcessEvent(CallTree tree, FrameTable ft, Timeline timeline)
    {
-      this.allocs = allocs;
-      this.includes = includes;
-      this.size = size;
-      this.re = re;
+      this(tree, ft, timeline, null, null);
+   }
+
+   ProcessEvent(CallTree tree, FrameTable ft, Timeline timeline, BlockingQueue<List<RecordedEvent>> queue)
+   {
+      this(tree, ft, timeline, null, queue);
+   }
+
+   ProcessEvent(CallTree tree, FrameTable ft, Timeline timeline, Spill spill,
+                BlockingQueue<List<RecordedEvent>> queue)
+   {
+      this.tree = tree;
+      this.ft = ft;
+      this.timeline = timeline;
+      this.spill = spill;
+      this.queue = queue;
+      this.stacks = new IdentityHashMap<>();
+      this.threads = new IdentityHashMap<>();
+      this.interned = new HashMap<>();
+      this.ids = new ArrayList<>();
+      this.counters = new CounterTable();
+      this.prefix = new int[] {CallTree.ROOT, CallTree.ROOT};
+      this.scratch = new int[64];
+      this.probe = new Stack(scratch, 0);
+      this.events = 0;
+
+      if (timeline != null || ft.hasThreads())
+      {
+         this.prefixes = new CounterTable(64);
+         this.paths = new CounterTable();
+      }
    }
 
    /**
-    * Process
+    * Process batches from the queue until an empty batch is received
     */
    public void run()
    {
+      try
+      {
+         List<RecordedEvent> batch = queue.take();
+         while (!batch.isEmpty())
+         {
+            try
+            {
+               for (int i = 0; i < batch.size(); i++)
+               {
+                  process(batch.get(i));
+               }
+            }
+            catch (Exception e)
+            {
+               // Keep draining the queue, otherwise the reader would block forever
+               System.err.println(e.getMessage());
+               e.printStackTrace();
+            }
+
+            batch = queue.take();
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+      }
+      finally
+      {
+         flush();
+      }
+   }
+
+   /**
+    * Add the counters to the call tree, and clear the caches
+    */
+   void flush()
+   {
+      int[] p = new int[2];
+
+      for (int i = 0; i < counters.size(); i++)
+      {
+         long key = counters.getKey(i);
+         int path = (int)(key >>> 32);
+         int type = (int)key;
+         int stack = path;
+
+         p[0] = CallTree.ROOT;
+         p[1] = CallTree.ROOT;
+
+         if (paths != null)
+         {
+            long pathKey = paths.getKey(path);
+            long prefixKey = prefixes.getKey((int)(pathKey >>> 32));
+
+            stack = (int)pathKey;
+            p[0] = (int)(prefixKey >> 32);
+            p[1] = (int)prefixKey;
+         }
+
+         tree.add(p, ids.get(stack), type, counters.getBytes(i), counters.getCount(i));
+      }
+
+      counters.clear();
+      if (paths != null)
+      {
+         paths.clear();
+         prefixes.clear();
+      }
+      ids.clear();
+      interned.clear();
+      stacks.clear();
+   }
+
+   /**
+    * Get the number of nodes of the call tree and the counters
+    * @return The value
+    */
+   int size()
+   {
+      return tree.size() + counters.size();
+   }
+
+   /**
+    * Process
+    * @param re The event
+    */
+   void process(RecordedEvent re)
+   {
+      Stats.READ.increment();
+
+      if (spill != null && ++events % CHECK_INTERVAL == 0 && size() > spill.getMaxNodes())
+      {
+         flush();
+         spill.check(tree);
+      }
+
       String eventName = re.getEventType().getName();
 
       if ("jdk.ObjectAllocationInNewTLAB".equals(eventName) ||
           "jdk.ObjectAllocationOutsideTLAB".equals(eventName))
       {
-         if (re.hasField("stackTrace") && re.hasField("objectClass") && re.hasField("allocationSize"))
+         if (re.hasField("allocationSize"))
+            add(re, re.getLong("allocationSize"));
+      }
+      else if ("jdk.ObjectAllocationSample".equals(eventName))
+      {
+         // The weight is the number of bytes the thread allocated since its previous
+         // sample, so the sum of the weights estimates the allocated bytes
+         if (re.hasField("weight"))
+            add(re, re.getLong("weight"));
+      }
+   }
+
+   /**
+    * Add an allocation event to the call tree
+    * @param re The event
+    * @param bytes The number of bytes
+    */
+   private void add(RecordedEvent re, long bytes)
+   {
+      if (timeline != null)
+      {
+         // The raw ticks of an event can't be converted to epoch time with the public API,
+         // so an Instant is made per event when there is a timeline
+         long time = re.getStartTime().toEpochMilli();
+         if (!timeline.includes(time))
          {
-            RecordedStackTrace st = (RecordedStackTrace)re.getValue("stackTrace");
-            RecordedClass rc = (RecordedClass)re.getValue("objectClass");
+            Stats.EXCLUDED.add(bytes);
+            return;
+         }
 
-            if (st != null && rc != null)
-            {
-               Frame frame = new Frame(st, rc);
+         prefix[0] = timeline.window(time);
+      }
+
+      if (ft.hasThreads())
+      {
+         int thread = getThread(re.getThread());
+         if (thread == FrameTable.EXCLUDED)
+         {
+            Stats.EXCLUDED.add(bytes);
+            return;
+         }
+
+         prefix[1] = thread;
+      }
+
+      if (re.hasField("stackTrace") && re.hasField("objectClass"))
+      {
+         RecordedStackTrace st = (RecordedStackTrace)re.getValue("stackTrace");
+         RecordedClass rc = (RecordedClass)re.getValue("objectClass");
+
+         if (st != null && rc != null)
+         {
+            int stack = getStack(st);
+            int type = ft.allocation(rc.getName());
 
-               if (frame.shouldInclude(includes))
+            if (shouldInclude(ids.get(stack), type))
+            {
+               int path = stack;
+               if (paths != null)
                {
-                  AtomicLong alloc = allocs.get(frame);
-                  if (alloc == null)
-                  {
-                     AtomicLong newAlloc = new AtomicLong(0);
-
-                     alloc = allocs.putIfAbsent(frame, newAlloc);
-                     if (alloc == null)
-                     {
-                        alloc = newAlloc;
-                     }
-                  }
-
-                  if (size)
-                  {
-                     alloc.addAndGet(re.getLong("allocationSize"));
-                  }
-                  else
-                  {
-                     alloc.addAndGet(1);
-                  }
+                  int p = prefixes.index(((long)prefix[0] << 32) | (prefix[1] & 0xFFFFFFFFL));
+                  path = paths.index(((long)p << 32) | stack);
                }
+
+               counters.add(((long)path << 32) | (type & 0xFFFFFFFFL), bytes, 1);
+               Stats.MATCHED.increment();
+            }
+            else
+            {
+               Stats.EXCLUDED.add(bytes);
+            }
+
+            // The stacks are interned whether they are included or not
+            if (counters.size() >= FLUSH_SIZE || ids.size() >= FLUSH_SIZE)
+               flush();
+         }
+      }
+   }
+
+   /**
+    * Should include
+    * @param stack The stack
+    * @param type The allocated class
+    * @return True if include, otherwise false
+    */
+   private boolean shouldInclude(int[] stack, int type)
+   {
+      if (!ft.hasIncludes())
+         return true;
+
+      for (int i = 0; i < stack.length; i++)
+      {
+         if (ft.isIncluded(stack[i]))
+         {
+            return true;
+         }
+      }
+
+      return ft.isIncluded(type);
+   }
+
+   /**
+    * Get the type of a frame
+    * @param rf The frame
+    * @return The type
+    */
+   private static int getType(RecordedFrame rf)
+   {
+      String type = rf.getType();
+
+      if ("Inlined".equals(type))
+         return FrameTable.TYPE_INLINED;
+
+      if ("JIT compiled".equals(type))
+         return FrameTable.TYPE_JIT;
+
+      if ("Interpreted".equals(type))
+         return FrameTable.TYPE_INTERPRETED;
+
+      if ("Native".equals(type))
+         return FrameTable.TYPE_NATIVE;
+
+      return FrameTable.TYPE_NONE;
+   }
+
+   /**
+    * Get the id of the frame of a thread. Threads are shared through the constant pool
+    * of a chunk like stack traces, so they are cached by identity too
+    * @param rt The thread
+    * @return The id; CallTree.ROOT if there are no thread frames, or FrameTable.EXCLUDED
+    */
+   private int getThread(RecordedThread rt)
+   {
+      if (rt == null)
+         return ft.thread("unknown");
+
+      Integer id = threads.get(rt);
+
+      if (id == null)
+      {
+         String name = rt.getJavaName();
+         if (name == null)
+            name = rt.getOSName();
+
+         id = Integer.valueOf(ft.thread(name != null ? name : "unknown"));
+
+         if (threads.size() == CACHE_SIZE)
+            threads.clear();
+
+         threads.put(rt, id);
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * Get the id of the interned stack of a stack trace. Stack traces are shared through
+    * the constant pool of a chunk, so they are cached by identity; the cache is cleared
+    * when it is full in order to not retain old chunks. The stacks are interned by their
+    * method ids, so the same stack has the same id in every chunk. The method ids are
+    * looked up from a scratch array, and only copied when the stack is new
+    * @param st The stack trace
+    * @return The index of the method ids, from the root to the allocating method, in ids
+    */
+   private int getStack(RecordedStackTrace st)
+   {
+      Integer id = stacks.get(st);
+
+      if (id == null)
+      {
+         List<RecordedFrame> frames = st.getFrames();
+         int depth = frames.size();
+
+         if (scratch.length < depth)
+            scratch = new int[depth * 2];
+
+         int[] stack = scratch;
+         for (int i = 0; i < depth; i++)
+         {
+            RecordedFrame rf = frames.get(depth - 1 - i);
+            RecordedMethod rm = rf.getMethod();
+            stack[i] = ft.method(rm.getType().getName(), rm.getName());
+
+            if (ft.hasLines() || ft.hasTypes())
+            {
+               stack[i] = ft.frame(stack[i],
+                                   ft.hasLines() ? rf.getLineNumber() : -1,
+                                   ft.hasLines() ? rf.getBytecodeIndex() : -1,
+                                   ft.hasTypes() ? getType(rf) : FrameTable.TYPE_NONE);
             }
          }
+
+         probe.set(stack, depth);
+         id = interned.get(probe);
+         if (id == null)
+         {
+            int[] copy = Arrays.copyOf(stack, depth);
+            id = Integer.valueOf(ids.size());
+            ids.add(copy);
+            interned.put(new Stack(copy, depth), id);
+         }
+
+         if (stacks.size() == CACHE_SIZE)
+            stacks.clear();
+
+         stacks.put(st, id);
+      }
+
+      return id.intValue();
+   }
+
+   /**
+    * The method ids of a stack, compared by value. The probe of the lookups is reused
+    * for every stack, so it refers to a part of the scratch array
+    */
+   private static class Stack
+   {
+      private int[] ids;
+      private int length;
+      private int hash;
+
+      Stack(int[] ids, int length)
+      {
+         set(ids, length);
+      }
+
+      void set(int[] ids, int length)
+      {
+         this.ids = ids;
+         this.length = length;
+
+         int h = 1;
+         for (int i = 0; i < length; i++)
+         {
+            h = 31 * h + ids[i];
+         }
+         this.hash = h;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Stack))
+            return false;
+
+         Stack s = (Stack)o;
+         return hash == s.hash && Arrays.equals(ids, 0, length, s.ids, 0, s.length);
       }
    }
 }
@@ -0,0 +1,137 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Process a .jfr file as a task on a work-stealing pool. A file with multiple chunks
+ * forks a task per chunk, so idle threads can pick up chunks of other files
+ */
+class ProcessFile extends RecursiveAction
+{
+   private static final long serialVersionUID = 1L;
+
+   /** The number of events between checks of the local tree size */
+   private static final int CHECK_INTERVAL = 1024;
+
+   CallTree tree;
+   FrameTable ft;
+   Timeline timeline;
+   Spill spill;
+   int cap;
+   Path path;
+   Chunk chunk;
+
+   ProcessFile(CallTree tree, FrameTable ft, Timeline timeline, Spill spill, int cap,
+               Path path)
+   {
+      this(tree, ft, timeline, spill, cap, path, null);
+   }
+
+   ProcessFile(CallTree tree, FrameTable ft, Timeline timeline, Spill spill, int cap,
+               Path path, Chunk chunk)
+   {
+      this.tree = tree;
+      this.ft = ft;
+      this.timeline = timeline;
+      this.spill = spill;
+      this.cap = cap;
+      this.path = path;
+      this.chunk = chunk;
+   }
+
+   /**
+    * Process
+    */
+   @Override
+   protected void compute()
+   {
+      try
+      {
+         if (chunk == null)
+         {
+            List<Chunk> chunks = Chunk.find(path);
+
+            if (chunks.size() > 1)
+            {
+               List<ProcessFile> tasks = new ArrayList<>(chunks.size());
+               for (Chunk c : chunks)
+               {
+                  tasks.add(new ProcessFile(tree, ft, timeline, spill, cap, path, c));
+               }
+
+               invokeAll(tasks);
+            }
+            else
+            {
+               decode(path);
+            }
+         }
+         else
+         {
+            Path p = chunk.extract();
+            try
+            {
+               decode(p);
+            }
+            finally
+            {
+               Files.deleteIfExists(p);
+            }
+         }
+      }
+      catch (IOException ioe)
+      {
+         throw new UncheckedIOException(ioe);
+      }
+   }
+
+   /**
+    * Decode a recording into a local tree, which is merged into the tree whenever
+    * it holds more nodes than the cap, and at the end. The tree is spilled after
+    * a merge if it has grown too large
+    * @param p The path
+    */
+   private void decode(Path p) throws IOException
+   {
+      CallTree local = new CallTree();
+      ProcessEvent pe = new ProcessEvent(local, ft, timeline, spill, null);
+      int events = 0;
+
+      try (RecordingFile rcf = new RecordingFile(p))
+      {
+         while (rcf.hasMoreEvents())
+         {
+            pe.process(rcf.readEvent());
+            events++;
+
+            if (cap > 0 && events % CHECK_INTERVAL == 0 && pe.size() > cap)
+            {
+               pe.flush();
+               tree.merge(local);
+               local.clear();
+
+               if (spill != null)
+                  spill.check(tree);
+            }
+         }
+      }
+
+      pe.flush();
+      tree.merge(local);
+
+      if (spill != null)
+         spill.check(tree);
+   }
+}
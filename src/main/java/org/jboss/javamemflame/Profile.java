@@ -0,0 +1,505 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Profile; a binary file holding an aggregated call tree, so flame graphs can be
+ * rendered again without decoding the .jfr files. The format is
+ *
+ * <pre>
+ * int magic, int version
+ * int number of labels, and for each label: int length, UTF-8 bytes
+ * long number of nodes, and for each node in depth-first order:
+ *   int label (-1 for the root), int number of children, long bytes, long count
+ * </pre>
+ *
+ * where bytes and count are of the stacks ending in the node, and the children of a node
+ * are in the order of their labels
+ */
+class Profile
+{
+   /** "JMF\1" */
+   private static final int MAGIC = 0x4A4D4601;
+
+   private static final int VERSION = 1;
+
+   /**
+    * Write a profile
+    * @param p The path
+    * @param tree The call tree
+    * @param ft The frame table
+    */
+   static void write(Path p, CallTree tree, FrameTable ft) throws IOException
+   {
+      try (OutputStream os = Files.newOutputStream(p,
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         write(os, tree, ft);
+      }
+   }
+
+   /**
+    * Write a profile
+    * @param os The stream
+    * @param tree The call tree
+    * @param ft The frame table
+    */
+   static void write(OutputStream os, CallTree tree, FrameTable ft) throws IOException
+   {
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os, 65536));
+
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+
+      int labels = ft.size();
+      dos.writeInt(labels);
+      for (int i = 0; i < labels; i++)
+      {
+         byte[] b = ft.getLabel(i).getBytes(StandardCharsets.UTF_8);
+         dos.writeInt(b.length);
+         dos.write(b);
+      }
+
+      dos.writeLong(count(tree.getRoot()));
+      write(dos, tree.getRoot());
+
+      dos.flush();
+   }
+
+   /**
+    * Read a profile, and merge it into a call tree
+    * @param p The path
+    * @param tree The call tree
+    * @param ft The frame table
+    */
+   static void read(Path p, CallTree tree, FrameTable ft) throws IOException
+   {
+      MappedByteBuffer mbb;
+
+      try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ))
+      {
+         if (fc.size() > Integer.MAX_VALUE)
+            throw new IOException(p + " is too large");
+
+         mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+      }
+
+      tree.merge(read(mbb, ft, p.toString()));
+   }
+
+   /**
+    * Read a profile
+    * @param buffer The buffer
+    * @param ft The frame table
+    * @param name The name of the profile
+    * @return The call tree
+    */
+   static CallTree read(ByteBuffer buffer, FrameTable ft, String name) throws IOException
+   {
+      if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+         throw new IOException(name + " isn't a profile");
+
+      int version = buffer.getInt();
+      if (version != VERSION)
+         throw new IOException(name + " has unsupported version " + version);
+
+      // The labels of the profile mapped to the ids of the frame table
+      int labels = buffer.getInt();
+      int[] ids = new int[labels];
+      byte[] b = new byte[256];
+      for (int i = 0; i < labels; i++)
+      {
+         int length = buffer.getInt();
+         if (b.length < length)
+            b = new byte[length];
+
+         buffer.get(b, 0, length);
+         ids[i] = ft.name(new String(b, 0, length, StandardCharsets.UTF_8));
+      }
+
+      CallTree tree = new CallTree();
+      long nodes = buffer.getLong();
+
+      // The path to the current node, and the number of children left to read on each level
+      CallTree.Node[] path = new CallTree.Node[64];
+      int[] remaining = new int[64];
+      boolean[] included = new boolean[64];
+      int depth = 0;
+
+      for (long n = 0; n < nodes; n++)
+      {
+         int label = buffer.getInt();
+         int children = buffer.getInt();
+         long bytes = buffer.getLong();
+         long count = buffer.getLong();
+
+         while (depth > 0 && remaining[depth - 1] == 0)
+         {
+            depth--;
+         }
+
+         CallTree.Node node;
+         boolean include;
+         if (depth == 0)
+         {
+            node = tree.getRoot();
+            include = !ft.hasIncludes();
+         }
+         else
+         {
+            remaining[depth - 1]--;
+            node = tree.child(path[depth - 1], ids[label]);
+            include = included[depth - 1] || ft.isIncluded(ids[label]);
+         }
+
+         if (include)
+            node.addSelf(bytes, count);
+
+         if (depth == path.length)
+         {
+            path = Arrays.copyOf(path, depth * 2);
+            remaining = Arrays.copyOf(remaining, depth * 2);
+            included = Arrays.copyOf(included, depth * 2);
+         }
+
+         path[depth] = node;
+         remaining[depth] = children;
+         included[depth] = include;
+         depth++;
+      }
+
+      tree.sum();
+
+      return tree;
+   }
+
+   /**
+    * Count the nodes of a subtree that have a value
+    * @param node The node
+    * @return The number of nodes
+    */
+   private static long count(CallTree.Node node)
+   {
+      long count = 1;
+
+      for (CallTree.Node child : node.getChildren())
+      {
+         if (hasValue(child))
+            count += count(child);
+      }
+
+      return count;
+   }
+
+   private static void write(DataOutputStream dos, CallTree.Node node) throws IOException
+   {
+      int children = 0;
+      for (CallTree.Node child : node.getChildren())
+      {
+         if (hasValue(child))
+            children++;
+      }
+
+      dos.writeInt(node.getParent() == null ? -1 : node.getId());
+      dos.writeInt(children);
+      dos.writeLong(node.getSelf(true));
+      dos.writeLong(node.getSelf(false));
+
+      if (children == 0)
+         return;
+
+      // The children are written in the order of their ids, so the same tree is always
+      // written the same way, like the stream of the merged runs
+      CallTree.Node[] sorted = new CallTree.Node[children];
+      children = 0;
+      for (CallTree.Node child : node.getChildren())
+      {
+         if (hasValue(child))
+            sorted[children++] = child;
+      }
+
+      Arrays.sort(sorted, new Comparator<CallTree.Node>()
+      {
+         public int compare(CallTree.Node o1, CallTree.Node o2)
+         {
+            return Integer.compare(o1.getId(), o2.getId());
+         }
+      });
+
+      for (CallTree.Node child : sorted)
+      {
+         write(dos, child);
+      }
+   }
+
+   private static boolean hasValue(CallTree.Node node)
+   {
+      return node != null && (node.getTotal(true) != 0 || node.getTotal(false) != 0);
+   }
+
+   /**
+    * Writer of a profile from stacks in the order of their frame ids, where a stack comes
+    * before the stacks it is a prefix of, like the merged runs of Spill. A node is written
+    * when the first stack through it arrives, and its number of children is filled in
+    * when the stacks through it are done, so only the path to the current node is kept
+    */
+   static class Stream implements Closeable
+   {
+      private FileChannel fc;
+      private ByteBuffer buffer;
+      private ByteBuffer patch;
+      private long base;
+      private long nodes;
+      private long nodesOffset;
+      private int[] ids;
+      private long[] offsets;
+      private int[] children;
+      private int depth;
+
+      /**
+       * Constructor
+       * @param p The path
+       * @param ft The frame table
+       */
+      Stream(Path p, FrameTable ft) throws IOException
+      {
+         this.fc = FileChannel.open(p,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+         this.buffer = ByteBuffer.allocate(65536);
+         this.patch = ByteBuffer.allocate(8);
+         this.base = 0;
+         this.nodes = 0;
+         this.ids = new int[64];
+         this.offsets = new long[65];
+         this.children = new int[65];
+         this.depth = 0;
+
+         putInt(MAGIC);
+         putInt(VERSION);
+
+         int labels = ft.size();
+         putInt(labels);
+         for (int i = 0; i < labels; i++)
+         {
+            byte[] b = ft.getLabel(i).getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            put(b);
+         }
+
+         nodesOffset = position();
+         putLong(0L);
+
+         // The root
+         node(-1, 0, 0);
+      }
+
+      /**
+       * Add a stack
+       * @param path The frame ids; the last one is the allocated class
+       * @param length The number of frame ids
+       * @param bytes The number of bytes
+       * @param count The number of allocations
+       */
+      void add(int[] path, int length, long bytes, long count) throws IOException
+      {
+         int common = 0;
+         while (common < depth && common < length && ids[common] == path[common])
+         {
+            common++;
+         }
+
+         while (depth > common)
+         {
+            pop();
+         }
+
+         if (common == length)
+         {
+            // The stack ends in a node which is written already, only the root in practice
+            patchLong(offsets[depth] + 8, bytes);
+            patchLong(offsets[depth] + 16, count);
+            return;
+         }
+
+         for (int i = common; i < length; i++)
+         {
+            children[depth]++;
+
+            if (depth == ids.length)
+            {
+               ids = Arrays.copyOf(ids, depth * 2);
+               offsets = Arrays.copyOf(offsets, depth * 2 + 1);
+               children = Arrays.copyOf(children, depth * 2 + 1);
+            }
+
+            ids[depth] = path[i];
+            depth++;
+
+            if (i == length - 1)
+            {
+               node(path[i], bytes, count);
+            }
+            else
+            {
+               node(path[i], 0, 0);
+            }
+         }
+      }
+
+      /**
+       * Fill in the open nodes and the number of nodes, and close the file
+       */
+      @Override
+      public void close() throws IOException
+      {
+         try
+         {
+            while (depth > 0)
+            {
+               pop();
+            }
+            patchInt(offsets[0] + 4, children[0]);
+
+            drain();
+            patchLong(nodesOffset, nodes);
+         }
+         finally
+         {
+            fc.close();
+         }
+      }
+
+      /**
+       * Write a node, which becomes the deepest open node
+       */
+      private void node(int label, long bytes, long count) throws IOException
+      {
+         offsets[depth] = position();
+         children[depth] = 0;
+         nodes++;
+
+         putInt(label);
+         putInt(0);
+         putLong(bytes);
+         putLong(count);
+      }
+
+      /**
+       * Fill in the number of children of the deepest open node, and close it
+       */
+      private void pop() throws IOException
+      {
+         patchInt(offsets[depth] + 4, children[depth]);
+         depth--;
+      }
+
+      private long position()
+      {
+         return base + buffer.position();
+      }
+
+      private void putInt(int v) throws IOException
+      {
+         if (buffer.remaining() < 4)
+            drain();
+         buffer.putInt(v);
+      }
+
+      private void putLong(long v) throws IOException
+      {
+         if (buffer.remaining() < 8)
+            drain();
+         buffer.putLong(v);
+      }
+
+      private void put(byte[] b) throws IOException
+      {
+         int offset = 0;
+         while (offset < b.length)
+         {
+            if (!buffer.hasRemaining())
+               drain();
+
+            int length = Math.min(buffer.remaining(), b.length - offset);
+            buffer.put(b, offset, length);
+            offset += length;
+         }
+      }
+
+      private void patchInt(long offset, int v) throws IOException
+      {
+         if (offset >= base)
+         {
+            buffer.putInt((int)(offset - base), v);
+         }
+         else
+         {
+            patch.clear();
+            patch.putInt(v);
+            patch.flip();
+            write(offset);
+         }
+      }
+
+      private void patchLong(long offset, long v) throws IOException
+      {
+         if (offset >= base)
+         {
+            buffer.putLong((int)(offset - base), v);
+         }
+         else
+         {
+            patch.clear();
+            patch.putLong(v);
+            patch.flip();
+            write(offset);
+         }
+      }
+
+      /**
+       * Write the patch at an offset which has left the buffer
+       */
+      private void write(long offset) throws IOException
+      {
+         while (patch.hasRemaining())
+         {
+            fc.write(patch, offset + patch.position());
+         }
+      }
+
+      /**
+       * Write the buffer to the end of the file
+       */
+      private void drain() throws IOException
+      {
+         buffer.flip();
+         while (buffer.hasRemaining())
+         {
+            base += fc.write(buffer);
+         }
+         buffer.clear();
+      }
+   }
+}
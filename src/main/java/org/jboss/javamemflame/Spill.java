@@ -0,0 +1,661 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Spill; keeps the call trees under a number of nodes by writing their stacks to run
+ * files on disk, sorted by their frame ids. The runs are merged at the end, where the
+ * stacks are selected like Main.select, so only the selected stacks are kept in memory.
+ * All stacks of the folded format are sorted by value through sorted runs of the same
+ * format instead.
+ *
+ * A record of a run is the depth, the frame ids, the bytes and the count of a stack,
+ * and a run ends with a depth of -1
+ */
+class Spill
+{
+   /** The estimated number of bytes of a node of a call tree */
+   static final int NODE_SIZE = 80;
+
+   /** The size of the buffers of a run */
+   private static final int BUFFER_SIZE = 65536;
+
+   private int maxNodes;
+   private Path directory;
+   private List<Path> runs;
+   private int peakNodes;
+   private long stacks;
+
+   /**
+    * A stack of the merge
+    */
+   private static class Stack
+   {
+      int[] path;
+      long bytes;
+      long count;
+
+      Stack(int[] path, long bytes, long count)
+      {
+         this.path = path;
+         this.bytes = bytes;
+         this.count = count;
+      }
+
+      long getValue(boolean size)
+      {
+         return size ? bytes : count;
+      }
+   }
+
+   /**
+    * A run being read
+    */
+   private static class Run
+   {
+      DataInputStream in;
+      int[] path;
+      int depth;
+      long bytes;
+      long count;
+
+      Run(Path p) throws IOException
+      {
+         this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), BUFFER_SIZE));
+         this.path = new int[64];
+      }
+
+      /**
+       * Read the next stack
+       * @return False at the end of the run
+       */
+      boolean next() throws IOException
+      {
+         depth = in.readInt();
+         if (depth < 0)
+            return false;
+
+         if (path.length < depth)
+            path = new int[depth * 2];
+
+         for (int i = 0; i < depth; i++)
+         {
+            path[i] = in.readInt();
+         }
+
+         bytes = in.readLong();
+         count = in.readLong();
+
+         return true;
+      }
+   }
+
+   /**
+    * A visitor of the merged stacks
+    */
+   private interface Visitor
+   {
+      void visit(int[] path, int depth, long bytes, long count) throws IOException;
+   }
+
+   /**
+    * Constructor
+    * @param maxNodes The maximum number of nodes of a call tree
+    */
+   Spill(int maxNodes)
+   {
+      this.maxNodes = Math.max(maxNodes, 1);
+      this.directory = null;
+      this.runs = new ArrayList<>();
+      this.peakNodes = 0;
+      this.stacks = 0;
+   }
+
+   /**
+    * Get the maximum number of nodes of a call tree
+    * @return The value
+    */
+   int getMaxNodes()
+   {
+      return maxNodes;
+   }
+
+   /**
+    * Get the largest number of nodes of a call tree written as a run
+    * @return The value
+    */
+   synchronized int getPeakNodes()
+   {
+      return peakNodes;
+   }
+
+   /**
+    * Get the number of distinct stacks of the runs, once they are merged
+    * @return The value
+    */
+   long getStackCount()
+   {
+      return stacks;
+   }
+
+   /**
+    * Has runs
+    * @return True if a call tree has been spilled
+    */
+   synchronized boolean hasRuns()
+   {
+      return !runs.isEmpty();
+   }
+
+   /**
+    * Spill a call tree, and clear it, if it holds more than the maximum number of nodes
+    * @param tree The call tree
+    */
+   void check(CallTree tree)
+   {
+      synchronized (tree)
+      {
+         if (tree.size() > maxNodes)
+         {
+            try
+            {
+               write(tree);
+            }
+            catch (IOException ioe)
+            {
+               throw new UncheckedIOException(ioe);
+            }
+
+            tree.clear();
+         }
+      }
+   }
+
+   /**
+    * Write the stacks of a call tree as a run
+    * @param tree The call tree
+    */
+   void write(CallTree tree) throws IOException
+   {
+      Path p;
+      synchronized (this)
+      {
+         if (directory == null)
+            directory = Files.createTempDirectory("javamemflame-spill");
+
+         p = directory.resolve(String.format("run-%06d", runs.size()));
+         runs.add(p);
+         peakNodes = Math.max(peakNodes, tree.size());
+      }
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p), BUFFER_SIZE)))
+      {
+         write(out, tree.getRoot(), new int[64]);
+         out.writeInt(-1);
+      }
+
+      Stats.RUNS.increment();
+   }
+
+   /**
+    * Write the stacks under a node, with the children in order of their ids, so the
+    * stacks of a run are sorted
+    * @param out The run
+    * @param node The node
+    * @param path The ids of the nodes from the root
+    */
+   private static void write(DataOutputStream out, CallTree.Node node, int[] path) throws IOException
+   {
+      int depth = node.getDepth();
+
+      if (node.getSelf(true) != 0 || node.getSelf(false) != 0)
+      {
+         out.writeInt(depth);
+         for (int i = 0; i < depth; i++)
+         {
+            out.writeInt(path[i]);
+         }
+         out.writeLong(node.getSelf(true));
+         out.writeLong(node.getSelf(false));
+      }
+
+      CallTree.Node[] children = node.getChildren();
+      int length = 0;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+            length++;
+      }
+
+      if (length == 0)
+         return;
+
+      CallTree.Node[] sorted = new CallTree.Node[length];
+      length = 0;
+      for (int i = 0; i < children.length; i++)
+      {
+         if (children[i] != null)
+            sorted[length++] = children[i];
+      }
+
+      Arrays.sort(sorted, new Comparator<CallTree.Node>()
+      {
+         public int compare(CallTree.Node o1, CallTree.Node o2)
+         {
+            return Integer.compare(o1.getId(), o2.getId());
+         }
+      });
+
+      if (path.length <= depth)
+         path = Arrays.copyOf(path, path.length * 2);
+
+      for (CallTree.Node child : sorted)
+      {
+         path[depth] = child.getId();
+         write(out, child, path);
+      }
+   }
+
+   /**
+    * Merge the runs straight into a profile, so no call tree is built. The stacks arrive
+    * in the order of their frame ids, which is the order of the nodes of a profile
+    * @param p The path of the profile
+    * @param ft The frame table
+    */
+   void write(Path p, FrameTable ft) throws IOException
+   {
+      try (Profile.Stream stream = new Profile.Stream(p, ft))
+      {
+         merge(new Visitor()
+         {
+            public void visit(int[] path, int depth, long bytes, long count) throws IOException
+            {
+               stream.add(path, depth, bytes, count);
+            }
+         });
+      }
+   }
+
+   /**
+    * Merge the runs into a file in the folded format, with the stacks in the order of
+    * Main.select; by value, and then by their frame ids, followed by the Filtered stack.
+    * The stacks over the cut off are sorted in batches of the size of a call tree, and
+    * when there is more than one batch they are written as sorted runs, which are merged
+    * into the file, so no call tree is built
+    * @param writer The file
+    * @param ft The frame table
+    * @param size Bytes or count
+    * @param cutoff The cut off
+    */
+   void write(BufferedWriter writer, FrameTable ft, boolean size, long cutoff) throws IOException
+   {
+      long[] filtered = new long[2];
+      List<Stack> batch = new ArrayList<>();
+      List<Path> sorted = new ArrayList<>();
+      long[] nodes = new long[1];
+
+      Comparator<Stack> order = new Comparator<Stack>()
+      {
+         public int compare(Stack o1, Stack o2)
+         {
+            int c = Long.compare(o2.getValue(size), o1.getValue(size));
+            if (c != 0)
+               return c;
+
+            return CallTree.compare(o1.path, o1.path.length, o2.path, o2.path.length);
+         }
+      };
+
+      try
+      {
+         merge(new Visitor()
+         {
+            public void visit(int[] path, int depth, long bytes, long count) throws IOException
+            {
+               long value = size ? bytes : count;
+
+               if (value < cutoff)
+               {
+                  filtered[0] += bytes;
+                  filtered[1] += count;
+               }
+               else
+               {
+                  batch.add(new Stack(Arrays.copyOf(path, depth), bytes, count));
+                  nodes[0] += depth;
+
+                  if (nodes[0] >= maxNodes)
+                  {
+                     batch.sort(order);
+                     sorted.add(write(batch, sorted.size()));
+                     batch.clear();
+                     nodes[0] = 0;
+                  }
+               }
+            }
+         });
+
+         batch.sort(order);
+
+         if (sorted.isEmpty())
+         {
+            for (Stack stack : batch)
+            {
+               TextFile.append(writer, ft, stack.path, stack.path.length, stack.getValue(size));
+            }
+         }
+         else
+         {
+            if (!batch.isEmpty())
+               sorted.add(write(batch, sorted.size()));
+            batch.clear();
+
+            merge(sorted, writer, ft, size);
+         }
+      }
+      finally
+      {
+         for (Path p : sorted)
+         {
+            Files.deleteIfExists(p);
+         }
+      }
+
+      if (filtered[0] > 0 || filtered[1] > 0)
+      {
+         Stats.FILTERED.add(filtered[0]);
+         TextFile.append(writer, "java;Filtered " + (size ? filtered[0] : filtered[1]));
+      }
+   }
+
+   /**
+    * Write a batch of stacks as a sorted run
+    * @param batch The stacks
+    * @param index The index of the sorted run
+    * @return The path of the sorted run
+    */
+   private Path write(List<Stack> batch, int index) throws IOException
+   {
+      Path p = directory.resolve(String.format("sorted-%06d", index));
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p), BUFFER_SIZE)))
+      {
+         for (Stack stack : batch)
+         {
+            out.writeInt(stack.path.length);
+            for (int id : stack.path)
+            {
+               out.writeInt(id);
+            }
+            out.writeLong(stack.bytes);
+            out.writeLong(stack.count);
+         }
+         out.writeInt(-1);
+      }
+
+      return p;
+   }
+
+   /**
+    * Merge sorted runs into a file in the folded format. The stacks of the sorted runs
+    * are distinct, so they are written one by one
+    * @param sorted The sorted runs
+    * @param writer The file
+    * @param ft The frame table
+    * @param size Bytes or count
+    */
+   private static void merge(List<Path> sorted, BufferedWriter writer, FrameTable ft, boolean size) throws IOException
+   {
+      PriorityQueue<Run> queue = new PriorityQueue<>(sorted.size(), new Comparator<Run>()
+      {
+         public int compare(Run o1, Run o2)
+         {
+            int c = Long.compare(size ? o2.bytes : o2.count, size ? o1.bytes : o1.count);
+            if (c != 0)
+               return c;
+
+            return CallTree.compare(o1.path, o1.depth, o2.path, o2.depth);
+         }
+      });
+
+      List<Run> open = new ArrayList<>(sorted.size());
+
+      try
+      {
+         for (Path p : sorted)
+         {
+            Run run = new Run(p);
+            open.add(run);
+
+            if (run.next())
+               queue.add(run);
+         }
+
+         while (!queue.isEmpty())
+         {
+            Run run = queue.poll();
+            TextFile.append(writer, ft, run.path, run.depth, size ? run.bytes : run.count);
+
+            if (run.next())
+               queue.add(run);
+         }
+      }
+      finally
+      {
+         for (Run run : open)
+         {
+            run.in.close();
+         }
+      }
+   }
+
+   /**
+    * Merge the runs and select the stacks to show, like Main.select. Only the selected
+    * stacks are added to the call tree, followed by the Filtered stack. Without a top all
+    * stacks over the cut off are added, so the cut off is what bounds the call tree
+    * @param tree The call tree
+    * @param ft The frame table
+    * @param size Bytes or count
+    * @param cutoff The cut off
+    * @param top The number of stacks to keep; 0 for all
+    * @return The stacks
+    */
+   List<CallTree.Node> select(CallTree tree, FrameTable ft, boolean size, long cutoff, int top) throws IOException
+   {
+      long[] filtered = new long[2];
+      List<CallTree.Node> l = new ArrayList<>();
+
+      // The worst of the kept stacks is the head, so it is the one evicted
+      PriorityQueue<Stack> heap = new PriorityQueue<>(Math.max(top, 1), new Comparator<Stack>()
+      {
+         public int compare(Stack o1, Stack o2)
+         {
+            int c = Long.compare(o1.getValue(size), o2.getValue(size));
+            if (c != 0)
+               return c;
+
+            return CallTree.compare(o2.path, o2.path.length, o1.path, o1.path.length);
+         }
+      });
+
+      merge(new Visitor()
+      {
+         public void visit(int[] path, int depth, long bytes, long count)
+         {
+            long value = size ? bytes : count;
+
+            if (value < cutoff)
+            {
+               filtered[0] += bytes;
+               filtered[1] += count;
+            }
+            else if (top <= 0)
+            {
+               l.add(add(tree, path, depth, bytes, count));
+            }
+            else if (heap.size() < top)
+            {
+               heap.add(new Stack(Arrays.copyOf(path, depth), bytes, count));
+            }
+            else
+            {
+               // The stacks are visited in order, so a stack with the value of the worst
+               // kept stack comes after it, and loses like in Main.select
+               Stack worst = heap.peek();
+               if (value > worst.getValue(size))
+               {
+                  heap.poll();
+                  heap.add(new Stack(Arrays.copyOf(path, depth), bytes, count));
+                  filtered[0] += worst.bytes;
+                  filtered[1] += worst.count;
+               }
+               else
+               {
+                  filtered[0] += bytes;
+                  filtered[1] += count;
+               }
+            }
+         }
+      });
+
+      while (!heap.isEmpty())
+      {
+         Stack s = heap.poll();
+         l.add(add(tree, s.path, s.path.length, s.bytes, s.count));
+      }
+
+      CallTree.Node[] stacks = l.toArray(new CallTree.Node[l.size()]);
+      Main.sortByValue(stacks, stacks.length, size);
+
+      List<CallTree.Node> result = new ArrayList<>(stacks.length + 1);
+      for (CallTree.Node node : stacks)
+      {
+         result.add(node);
+      }
+
+      if (filtered[0] > 0 || filtered[1] > 0)
+      {
+         Stats.FILTERED.add(filtered[0]);
+         result.add(tree.add(new int[0], ft.name("Filtered"), filtered[0], filtered[1]));
+      }
+
+      return result;
+   }
+
+   /**
+    * Merge the runs; the stacks are visited once each, in order, with the values
+    * of all runs added together
+    * @param visitor The visitor
+    */
+   private void merge(Visitor visitor) throws IOException
+   {
+      PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(runs.size(), 1), new Comparator<Run>()
+      {
+         public int compare(Run o1, Run o2)
+         {
+            return CallTree.compare(o1.path, o1.depth, o2.path, o2.depth);
+         }
+      });
+
+      List<Run> open = new ArrayList<>(runs.size());
+      stacks = 0;
+
+      try
+      {
+         for (Path p : runs)
+         {
+            Run run = new Run(p);
+            open.add(run);
+
+            if (run.next())
+               queue.add(run);
+         }
+
+         int[] path = new int[64];
+         while (!queue.isEmpty())
+         {
+            Run run = queue.poll();
+            int depth = run.depth;
+            long bytes = run.bytes;
+            long count = run.count;
+
+            if (path.length < depth)
+               path = new int[depth * 2];
+            System.arraycopy(run.path, 0, path, 0, depth);
+
+            if (run.next())
+               queue.add(run);
+
+            while (!queue.isEmpty() && CallTree.compare(queue.peek().path, queue.peek().depth, path, depth) == 0)
+            {
+               run = queue.poll();
+               bytes += run.bytes;
+               count += run.count;
+
+               if (run.next())
+                  queue.add(run);
+            }
+
+            visitor.visit(path, depth, bytes, count);
+            stacks++;
+         }
+      }
+      finally
+      {
+         for (Run run : open)
+         {
+            run.in.close();
+         }
+      }
+   }
+
+   /**
+    * Delete the runs
+    */
+   synchronized void close() throws IOException
+   {
+      for (Path p : runs)
+      {
+         Files.deleteIfExists(p);
+      }
+      runs.clear();
+
+      if (directory != null)
+      {
+         Files.deleteIfExists(directory);
+         directory = null;
+      }
+   }
+
+   /**
+    * Add a stack of a run to a call tree
+    * @param tree The call tree
+    * @param path The frame ids; the last one is the allocated class
+    * @param depth The number of frame ids
+    * @param bytes The number of bytes
+    * @param count The number of allocations
+    * @return The node of the stack
+    */
+   private static CallTree.Node add(CallTree tree, int[] path, int depth, long bytes, long count)
+   {
+      return tree.add(Arrays.copyOf(path, depth - 1), path[depth - 1], bytes, count);
+   }
+}
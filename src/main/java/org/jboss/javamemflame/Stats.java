@@ -0,0 +1,276 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Stats; the phases and the counters of an analysis. The phases and the counters are
+ * JFR events as well, so the analyzer can be profiled with -XX:StartFlightRecording
+ */
+class Stats
+{
+   /** The number of events read */
+   static final LongAdder READ = new LongAdder();
+
+   /** The number of allocation events added to a call tree */
+   static final LongAdder MATCHED = new LongAdder();
+
+   /** The number of bytes of the allocation events excluded by the filters */
+   static final LongAdder EXCLUDED = new LongAdder();
+
+   /** The number of runs spilled to disk */
+   static final LongAdder RUNS = new LongAdder();
+
+   /** The number of bytes of the stacks moved to Filtered by the cut off or the top */
+   static final LongAdder FILTERED = new LongAdder();
+
+   private static Map<String, Long> phases = new LinkedHashMap<>();
+   private static volatile Phase current;
+   private static long stacks;
+   private static long nodes;
+   private static long labels;
+   private static Thread progress;
+
+   /**
+    * A phase of the analysis
+    */
+   @Name("org.jboss.javamemflame.Phase")
+   @Label("Phase")
+   @Category("javamemflame")
+   static class Phase extends Event
+   {
+      @Label("Name")
+      String name;
+
+      transient long start;
+   }
+
+   /**
+    * The counters of the analysis
+    */
+   @Name("org.jboss.javamemflame.Counters")
+   @Label("Counters")
+   @Category("javamemflame")
+   static class Counters extends Event
+   {
+      @Label("Events Read")
+      long eventsRead;
+
+      @Label("Events Matched")
+      long eventsMatched;
+
+      @Label("Excluded Bytes")
+      @DataAmount
+      long excludedBytes;
+
+      @Label("Filtered Bytes")
+      @DataAmount
+      long filteredBytes;
+
+      @Label("Runs")
+      long runs;
+
+      @Label("Stacks")
+      long stacks;
+
+      @Label("Nodes")
+      long nodes;
+
+      @Label("Labels")
+      long labels;
+   }
+
+   /**
+    * Begin a phase
+    * @param name The name
+    * @return The phase
+    */
+   static Phase begin(String name)
+   {
+      Phase p = new Phase();
+      p.name = name;
+      p.start = System.nanoTime();
+      p.begin();
+
+      current = p;
+
+      return p;
+   }
+
+   /**
+    * End a phase
+    * @param p The phase
+    */
+   static void end(Phase p)
+   {
+      p.end();
+      p.commit();
+
+      long ms = (System.nanoTime() - p.start) / 1000000L;
+      synchronized (Stats.class)
+      {
+         phases.merge(p.name, ms, Long::sum);
+      }
+
+      if (current == p)
+         current = null;
+   }
+
+   /**
+    * Set the sizes of the profile after the events are processed
+    * @param stacks The number of distinct stacks
+    * @param nodes The number of nodes of the call tree
+    * @param labels The number of labels of the frame table
+    */
+   static synchronized void sizes(long stacks, long nodes, long labels)
+   {
+      Stats.stacks = stacks;
+      Stats.nodes = nodes;
+      Stats.labels = labels;
+   }
+
+   /**
+    * Start writing the progress to the console
+    * @param interval The number of milliseconds between the lines
+    */
+   static synchronized void startProgress(long interval)
+   {
+      progress = new Thread(() ->
+      {
+         long start = System.currentTimeMillis();
+         try
+         {
+            while (true)
+            {
+               Thread.sleep(interval);
+
+               Phase p = current;
+               long read = READ.sum();
+               long seconds = Math.max((System.currentTimeMillis() - start) / 1000, 1);
+
+               System.err.println(String.format("javamemflame: %s %d s, %,d events read (%,d/s), %,d allocations",
+                                                p != null ? p.name : "-", seconds, read, read / seconds,
+                                                MATCHED.sum()));
+               commit();
+            }
+         }
+         catch (InterruptedException ie)
+         {
+            // Done
+         }
+      }, "javamemflame-progress");
+      progress.setDaemon(true);
+      progress.start();
+   }
+
+   /**
+    * Stop writing the progress
+    */
+   static synchronized void stopProgress()
+   {
+      if (progress != null)
+      {
+         progress.interrupt();
+         progress = null;
+      }
+   }
+
+   /**
+    * Commit the counters as a JFR event
+    */
+   static synchronized void commit()
+   {
+      Counters c = new Counters();
+      if (c.isEnabled())
+      {
+         c.eventsRead = READ.sum();
+         c.eventsMatched = MATCHED.sum();
+         c.excludedBytes = EXCLUDED.sum();
+         c.filteredBytes = FILTERED.sum();
+         c.runs = RUNS.sum();
+         c.stacks = stacks;
+         c.nodes = nodes;
+         c.labels = labels;
+         c.commit();
+      }
+   }
+
+   /**
+    * Write the phases and the counters as JSON
+    * @param p The path of the file
+    */
+   static synchronized void write(Path p) throws Exception
+   {
+      BufferedWriter writer = TextFile.openFile(p);
+
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\n");
+      sb.append("  \"phases\": {");
+
+      boolean first = true;
+      long total = 0;
+      for (Map.Entry<String, Long> e : phases.entrySet())
+      {
+         sb.append(first ? "\n" : ",\n");
+         sb.append("    \"");
+         escape(sb, e.getKey());
+         sb.append("\": ").append(e.getValue());
+         total += e.getValue();
+         first = false;
+      }
+
+      sb.append(first ? "},\n" : "\n  },\n");
+      sb.append("  \"totalMs\": ").append(total).append(",\n");
+      sb.append("  \"eventsRead\": ").append(READ.sum()).append(",\n");
+      sb.append("  \"eventsMatched\": ").append(MATCHED.sum()).append(",\n");
+      sb.append("  \"excludedBytes\": ").append(EXCLUDED.sum()).append(",\n");
+      sb.append("  \"filteredBytes\": ").append(FILTERED.sum()).append(",\n");
+      sb.append("  \"runs\": ").append(RUNS.sum()).append(",\n");
+      sb.append("  \"stacks\": ").append(stacks).append(",\n");
+      sb.append("  \"nodes\": ").append(nodes).append(",\n");
+      sb.append("  \"labels\": ").append(labels).append("\n");
+      sb.append("}");
+
+      TextFile.append(writer, sb.toString());
+      TextFile.closeFile(writer);
+   }
+
+   /**
+    * Append a string escaped for a JSON string
+    * @param sb The builder
+    * @param s The string
+    */
+   private static void escape(StringBuilder sb, String s)
+   {
+      for (int i = 0; i < s.length(); i++)
+      {
+         char c = s.charAt(i);
+
+         if (c == '"' || c == '\\')
+         {
+            sb.append('\\').append(c);
+         }
+         else if (c < 0x20)
+         {
+            sb.append(String.format("\\u%04x", (int)c));
+         }
+         else
+         {
+            sb.append(c);
+         }
+      }
+   }
+}
@@ -41,6 +41,84 @@ public class TextFile
       bw.newLine();
    }
 
+   /**
+    * Append a stack to a file in the folded format
+    * @param bw The file
+    * @param ft The frame table
+    * @param node The node of the stack
+    * @param value The value
+    */
+   static void append(BufferedWriter bw, FrameTable ft, CallTree.Node node, long value) throws IOException
+   {
+      appendPath(bw, ft, node);
+      bw.write(' ');
+      bw.write(Long.toString(value));
+      bw.newLine();
+   }
+
+   /**
+    * Append a stack of frame ids to a file in the folded format
+    * @param bw The file
+    * @param ft The frame table
+    * @param path The frame ids from the root
+    * @param depth The number of frame ids
+    * @param value The value
+    */
+   static void append(BufferedWriter bw, FrameTable ft, int[] path, int depth, long value) throws IOException
+   {
+      bw.write("java");
+      for (int i = 0; i < depth; i++)
+      {
+         bw.write(';');
+         bw.write(ft.getLabel(path[i]));
+      }
+      bw.write(' ');
+      bw.write(Long.toString(value));
+      bw.newLine();
+   }
+
+   /**
+    * Append a row of a delta table to a file
+    * @param bw The file
+    * @param ft The frame table
+    * @param node The node of the stack
+    * @param delta The delta
+    * @param baseline The baseline value
+    * @param candidate The candidate value
+    */
+   static void append(BufferedWriter bw, FrameTable ft, CallTree.Node node,
+                      long delta, long baseline, long candidate) throws IOException
+   {
+      bw.write(delta > 0 ? "+" + delta : Long.toString(delta));
+      bw.write(' ');
+      bw.write(Long.toString(baseline));
+      bw.write(' ');
+      bw.write(Long.toString(candidate));
+      bw.write(' ');
+      appendPath(bw, ft, node);
+      bw.newLine();
+   }
+
+   /**
+    * Append the frames from the root to a node
+    * @param bw The file
+    * @param ft The frame table
+    * @param node The node
+    */
+   private static void appendPath(BufferedWriter bw, FrameTable ft, CallTree.Node node) throws IOException
+   {
+      if (node.getParent() == null)
+      {
+         bw.write("java");
+      }
+      else
+      {
+         appendPath(bw, ft, node.getParent());
+         bw.write(';');
+         bw.write(ft.getLabel(node.getId()));
+      }
+   }
+
    /**
     * Close a file
     * @param bw The file
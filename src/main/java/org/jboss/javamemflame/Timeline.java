@@ -0,0 +1,186 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Timeline; the time range of the events to include, measured from the start of the
+ * recordings, and the windows they are divided into. A window is a frame of its own
+ * at the root of the call tree, so the windows are aggregated in the same pass
+ */
+class Timeline
+{
+   /** The maximum number of windows; the events after the last window are excluded */
+   static final int MAX_WINDOWS = 1000;
+
+   private FrameTable ft;
+   private long origin;
+   private long end;
+   private long from;
+   private long to;
+   private long window;
+   private volatile int[] ids;
+
+   /**
+    * Constructor
+    * @param ft The frame table
+    * @param origin The start time in milliseconds since the epoch
+    * @param end The end time in milliseconds since the epoch; -1 if it isn't known
+    * @param from The number of milliseconds from the start to the start of the range
+    * @param to The number of milliseconds from the start to the end of the range; 0 for no end
+    * @param window The number of milliseconds of a window; 0 for no windows
+    */
+   Timeline(FrameTable ft, long origin, long end, long from, long to, long window)
+   {
+      this.ft = ft;
+      this.origin = origin;
+      this.end = end;
+      this.from = from;
+      this.to = to > 0 ? to : Long.MAX_VALUE;
+      this.window = window;
+      this.ids = new int[16];
+   }
+
+   /**
+    * Create a timeline from the start of the earliest to the end of the latest recording
+    * @param ft The frame table
+    * @param paths The recordings
+    * @param from The number of milliseconds from the start to the start of the range
+    * @param to The number of milliseconds from the start to the end of the range; 0 for no end
+    * @param window The number of milliseconds of a window; 0 for no windows
+    * @return The timeline
+    */
+   static Timeline create(FrameTable ft, List<Path> paths, long from, long to, long window) throws Exception
+   {
+      long origin = Long.MAX_VALUE;
+      long end = 0;
+
+      for (Path path : paths)
+      {
+         long start = Chunk.start(path);
+         if (start < 0)
+            throw new IllegalArgumentException("Unknown start time of " + path);
+
+         origin = Math.min(origin, start);
+
+         long e = Chunk.end(path);
+         end = e < 0 || end < 0 ? -1 : Math.max(end, e);
+      }
+
+      return new Timeline(ft, origin, end, from, to, window);
+   }
+
+   /**
+    * Is a time in the range
+    * @param time The number of milliseconds since the epoch
+    * @return True if included, otherwise false
+    */
+   boolean includes(long time)
+   {
+      long offset = time - origin;
+      return offset >= from && offset < to && (window <= 0 || offset / window < MAX_WINDOWS);
+   }
+
+   /**
+    * Get the id of the window of a time
+    * @param time The number of milliseconds since the epoch
+    * @return The id; CallTree.ROOT if there are no windows
+    */
+   int window(long time)
+   {
+      if (window <= 0)
+         return CallTree.ROOT;
+
+      int index = (int)(Math.max(time - origin, 0) / window);
+      int[] a = ids;
+
+      // The ids are stored plus one, so 0 means unknown
+      if (index < a.length && a[index] != 0)
+         return a[index] - 1;
+
+      return intern(index);
+   }
+
+   /**
+    * Get the number of windows
+    * @return The number of windows up to the last window that has an id
+    */
+   synchronized int size()
+   {
+      int n = 0;
+      for (int i = 0; i < ids.length; i++)
+      {
+         if (ids[i] != 0)
+            n = i + 1;
+      }
+
+      return n;
+   }
+
+   /**
+    * Get the number of windows up to the end of the range, or the end of the recordings
+    * @return The value; 0 if there are no windows, or neither end is known
+    */
+   long getWindows()
+   {
+      long last = to;
+      if (end >= 0)
+         last = Math.min(last, end - origin);
+
+      if (window <= 0 || last == Long.MAX_VALUE)
+         return 0;
+
+      return (last + window - 1) / window;
+   }
+
+   /**
+    * Get the id of a window
+    * @param index The index of the window
+    * @return The id; -1 if the window has no events
+    */
+   int getId(int index)
+   {
+      int[] a = ids;
+      return index < a.length ? a[index] - 1 : -1;
+   }
+
+   /**
+    * Get the label of a window
+    * @param index The index of the window
+    * @return The value
+    */
+   String getLabel(int index)
+   {
+      return (index * window) + "-" + ((index + 1) * window) + " ms";
+   }
+
+   /**
+    * Get the number of milliseconds of a window
+    * @return The value
+    */
+   long getWindow()
+   {
+      return window;
+   }
+
+   private synchronized int intern(int index)
+   {
+      int[] a = ids;
+
+      if (index >= a.length)
+         a = Arrays.copyOf(a, Math.max(a.length * 2, index + 1));
+
+      if (a[index] == 0)
+         a[index] = ft.name("[" + getLabel(index) + "]") + 1;
+
+      ids = a;
+
+      return a[index] - 1;
+   }
+}
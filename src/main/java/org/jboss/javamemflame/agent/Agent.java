@@ -6,15 +6,22 @@
 package org.jboss.javamemflame.agent;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import jdk.jfr.EventType;
 import jdk.jfr.FlightRecorder;
 import jdk.jfr.Recording;
-
-import static java.time.temporal.ChronoUnit.MILLIS;
+import org.jboss.javamemflame.LiveProfile;
+import org.jboss.javamemflame.LiveServer;
 
 /**
  * Agent that generates an input file for flamegraph of memory allocations
@@ -22,9 +29,30 @@ import static java.time.temporal.ChronoUnit.MILLIS;
 public class Agent
 {
    private static FlightRecorder flightRecorder;
-   private static Recording r;
+   private static ScheduledExecutorService executor;
+   private static Control control;
+   private static LiveServer server;
+   private static ScheduledFuture<?> scheduledStart;
+   private static ScheduledFuture<?> scheduledStop;
    private static long delay;
    private static long duration;
+   private static boolean live;
+   private static boolean idle;
+   private static String format;
+   private static long flush;
+   private static long maxSize;
+   private static long maxAge;
+   private static long interval;
+   private static int keep;
+   private static String sample;
+   private static int stackDepth;
+   private static int http;
+   private static long trigger;
+   private static long window;
+   private static long before;
+   private static long after;
+   private static String triggerFile;
+   private static String signal;
 
    /**
     * Help
@@ -37,8 +65,263 @@ public class Agent
       System.out.println("  help       : Shows usage");
       System.out.println("  delay=X    : Delay recording by X ms");
       System.out.println("  duration=X : Record for X ms");
+      System.out.println("  live       : Aggregate in-process instead of writing a .jfr file");
+      System.out.println("  format=X   : Format of the live profile; jmf or txt");
+      System.out.println("  flush=X    : Write the live profile every X ms");
+      System.out.println("  maxsize=X  : Rotate the .jfr file when it reaches X bytes (k, m or g suffix)");
+      System.out.println("  maxage=X   : Delete rotated .jfr files older than X ms");
+      System.out.println("  interval=X : Rotate the .jfr file every X ms");
+      System.out.println("  keep=X     : Keep the newest X rotated .jfr files");
+      System.out.println("  sample=X   : Sample X allocations per second (Java 16+), like 100 or 10/ms");
+      System.out.println("  stackdepth=X : Record X frames of the stack traces");
+      System.out.println("  idle       : Only register the MBean; start the recording through JMX");
+      System.out.println("  http=X     : Serve the live profile on port X of the loopback interface");
+      System.out.println("  trigger=X  : Write a snapshot when the allocation rate is above X MB/s");
+      System.out.println("  window=X   : Measure the allocation rate over X ms");
+      System.out.println("  before=X   : Include X ms before the trigger in the snapshot");
+      System.out.println("  after=X    : Include X ms after the trigger in the snapshot");
+      System.out.println("  triggerfile=X : Write a snapshot when the file X exists");
+      System.out.println("  signal=X   : Write a snapshot when the JVM receives the signal X, like HUP");
+   }
+
+   /**
+    * Create a recording of the allocation events
+    * @return The recording
+    */
+   static Recording newRecording()
+   {
+      Recording recording = new Recording();
+
+      for (EventType et : flightRecorder.getEventTypes())
+      {
+         recording.disable(et.getName());
+      }
+
+      if (sample != null)
+      {
+         recording.enable("jdk.ObjectAllocationSample").with("throttle", sample);
+      }
+      else
+      {
+         recording.enable("jdk.ObjectAllocationInNewTLAB");
+         recording.enable("jdk.ObjectAllocationOutsideTLAB");
+      }
+
+      return recording;
+   }
+
+   /**
+    * Set up the sampling and the stack depth; must be done before the first recording
+    */
+   private static void configure() throws Exception
+   {
+      if (sample != null)
+      {
+         boolean supported = false;
+
+         for (EventType et : FlightRecorder.getFlightRecorder().getEventTypes())
+         {
+            if ("jdk.ObjectAllocationSample".equals(et.getName()))
+               supported = true;
+         }
+
+         if (!supported)
+         {
+            System.err.println("jdk.ObjectAllocationSample requires Java 16; recording all allocations");
+            sample = null;
+         }
+         else if (sample.indexOf("/") == -1)
+         {
+            sample = sample + "/s";
+         }
+      }
+
+      if (stackDepth > 0)
+      {
+         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+         ObjectName on = new ObjectName("com.sun.management:type=DiagnosticCommand");
+
+         try
+         {
+            mbs.invoke(on, "jfrConfigure",
+                       new Object[] {new String[] {"stackdepth=" + stackDepth}},
+                       new String[] {String[].class.getName()});
+         }
+         catch (Exception e)
+         {
+            System.err.println("Unable to set the stack depth (" + e.getMessage() + "); recording the default depth");
+         }
+      }
+   }
+
+   /**
+    * Create an executor with a daemon thread, so it doesn't keep the JVM alive
+    * @return The executor
+    */
+   private static ScheduledExecutorService newExecutor()
+   {
+      return Executors.newSingleThreadScheduledExecutor(r ->
+      {
+         Thread t = new Thread(r, "javamemflame");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Parse a size, which may have a k, m or g suffix
+    * @param s The string
+    * @return The number of bytes
+    */
+   private static long parseSize(String s)
+   {
+      String v = s.trim().toLowerCase();
+      long multiplier = 1;
+
+      if (v.endsWith("k"))
+      {
+         multiplier = 1024L;
+      }
+      else if (v.endsWith("m"))
+      {
+         multiplier = 1024L * 1024L;
+      }
+      else if (v.endsWith("g"))
+      {
+         multiplier = 1024L * 1024L * 1024L;
+      }
+
+      if (multiplier != 1)
+      {
+         v = v.substring(0, v.length() - 1);
+      }
+
+      return Long.valueOf(v) * multiplier;
+   }
+
+   /**
+    * Create the control of the recording in the mode given by the options
+    * @param ses The executor
+    * @return The control
+    */
+   private static Control newControl(ScheduledExecutorService ses)
+   {
+      long pid = ProcessHandle.current().pid();
+
+      if (live)
+      {
+         Path path = Paths.get("javamemflame-" + pid + "." + format);
+         // The server makes flame graphs of recent windows, so the last 10 minutes are kept
+         long history = http > 0 ? 600000 : 0;
+         LiveProfile profile = new LiveProfile(path, "txt".equals(format), flush, sample, history);
+
+         return new Control(pid, profile, null, null, 0, ses);
+      }
+      else if (maxSize != 0 || maxAge != 0 || interval != 0)
+      {
+         // Without a size or an interval the files are rotated when they reach the maximum age
+         if (maxSize == 0 && interval == 0)
+         {
+            interval = maxAge;
+         }
+
+         Rotation rotation = new Rotation(pid, maxSize, maxAge, interval, keep);
+         long period = interval > 0 ? Math.max(Math.min(interval / 10, 1000), 10) : 1000;
+
+         return new Control(pid, null, rotation, null, period, ses);
+      }
+      else if (trigger != 0 || triggerFile != null || signal != null)
+      {
+         Trigger t = new Trigger(pid, trigger * 1024 * 1024, window, before, after,
+                                 triggerFile != null ? Paths.get(triggerFile) : null);
+         long period = Math.max(Math.min(window / 4, 1000), 10);
+
+         if (signal != null)
+         {
+            t.handle(signal);
+         }
+
+         return new Control(pid, null, null, t, period, ses);
+      }
+
+      return new Control(pid, null, null, null, 0, ses);
+   }
+
+   /**
+    * Start the control; the recording starts after the delay, and stops after the duration
+    * @param ses The executor
+    */
+   private static void startControl(ScheduledExecutorService ses)
+   {
+      scheduledStart = ses.schedule(() -> invoke(Agent::start), delay, TimeUnit.MILLISECONDS);
+
+      if (duration != 0)
+      {
+         scheduledStop = ses.schedule(() -> invoke(Agent::stop), delay + duration, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Register the control as a MBean, replacing the control of an earlier attach
+    * @param c The control
+    */
+   private static void register(Control c) throws Exception
+   {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName(Control.NAME);
+
+      if (mbs.isRegistered(on))
+      {
+         mbs.unregisterMBean(on);
+      }
+
+      if (c.getProfile() != null)
+      {
+         mbs.registerMBean(new StandardMBean(c, LiveControlMBean.class), on);
+      }
+      else
+      {
+         mbs.registerMBean(new StandardMBean(c, ControlMBean.class), on);
+      }
+   }
+
+   private static synchronized void start() throws Exception
+   {
+      control.start();
+   }
+
+   private static synchronized void stop() throws Exception
+   {
+      control.stop();
+   }
+
+   /**
+    * Invoke an action, and report its failure
+    * @param action The action
+    */
+   private static void invoke(Action action)
+   {
+      try
+      {
+         action.run();
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
    }
 
+   /**
+    * An action which may fail
+    */
+   private interface Action
+   {
+      /**
+       * Run
+       */
+      void run() throws Exception;
+   }
 
    /**
     * Agent premain
@@ -46,11 +329,51 @@ public class Agent
     * @param inst The instrumentation
     */
    public static void premain(String args, Instrumentation inst)
+   {
+      init(args);
+   }
+
+   /**
+    * Agent agentmain; used when the agent is loaded into a running JVM. A recording
+    * of an earlier attach is stopped, and a new one is started with the arguments
+    * @param args The arguments
+    * @param inst The instrumentation
+    */
+   public static void agentmain(String args, Instrumentation inst)
+   {
+      init(args);
+   }
+
+   /**
+    * Initialize the agent
+    * @param args The arguments
+    */
+   private static synchronized void init(String args)
    {
       try
       {
          boolean run = true;
 
+         delay = 0;
+         duration = 0;
+         live = false;
+         idle = false;
+         format = "jmf";
+         flush = 60000;
+         maxSize = 0;
+         maxAge = 0;
+         interval = 0;
+         keep = 0;
+         sample = null;
+         stackDepth = 0;
+         http = 0;
+         trigger = 0;
+         window = 5000;
+         before = 30000;
+         after = 10000;
+         triggerFile = null;
+         signal = null;
+
          if (args != null && !"".equals(args.trim()))
          {
             StringTokenizer st = new StringTokenizer(args, ",");
@@ -71,43 +394,136 @@ public class Agent
                {
                   duration = Long.valueOf(token.substring(token.indexOf("=") + 1));
                }
+               else if ("live".equalsIgnoreCase(token))
+               {
+                  live = true;
+               }
+               else if ("idle".equalsIgnoreCase(token))
+               {
+                  idle = true;
+               }
+               else if (token.startsWith("format"))
+               {
+                  format = token.substring(token.indexOf("=") + 1);
+               }
+               else if (token.startsWith("flush"))
+               {
+                  flush = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("maxsize"))
+               {
+                  maxSize = parseSize(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("maxage"))
+               {
+                  maxAge = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("interval"))
+               {
+                  interval = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("keep"))
+               {
+                  keep = Integer.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("sample"))
+               {
+                  sample = token.substring(token.indexOf("=") + 1);
+               }
+               else if (token.startsWith("stackdepth"))
+               {
+                  stackDepth = Integer.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("triggerfile"))
+               {
+                  triggerFile = token.substring(token.indexOf("=") + 1);
+               }
+               else if (token.startsWith("trigger"))
+               {
+                  trigger = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("window"))
+               {
+                  window = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("before"))
+               {
+                  before = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("after"))
+               {
+                  after = Long.valueOf(token.substring(token.indexOf("=") + 1));
+               }
+               else if (token.startsWith("signal"))
+               {
+                  signal = token.substring(token.indexOf("=") + 1);
+               }
+               else if (token.startsWith("http"))
+               {
+                  http = Integer.valueOf(token.substring(token.indexOf("=") + 1));
+                  live = true;
+               }
             }
          }
 
-         if (run)
+         if (!run)
+            return;
+
+         if (!FlightRecorder.isAvailable())
          {
-            if (FlightRecorder.isAvailable())
-            {
-               long pid = ProcessHandle.current().pid();
-               Path path = Paths.get("javamemflame-" + pid + ".jfr");
+            System.err.println("FlightRecorder is not available");
+            return;
+         }
+
+         if (live && version() < 14)
+         {
+            System.err.println("Live mode requires Java 14");
+            return;
+         }
 
-               flightRecorder = FlightRecorder.getFlightRecorder();
-               r = new Recording();
+         flightRecorder = FlightRecorder.getFlightRecorder();
+         configure();
 
-               for (EventType et : flightRecorder.getEventTypes())
-               {
-                  r.disable(et.getName());
-               }
+         if (control != null)
+         {
+            if (scheduledStart != null)
+               scheduledStart.cancel(false);
 
-               r.enable​("jdk.ObjectAllocationInNewTLAB");
-               r.enable​("jdk.ObjectAllocationOutsideTLAB");
+            if (scheduledStop != null)
+               scheduledStop.cancel(false);
 
-               r.setDestination(path);
-               r.setDumpOnExit(true);
+            scheduledStart = null;
+            scheduledStop = null;
 
-               // We just start the recording; VMDeath will stop it automatically
-               if (duration != 0)
-               {
-                  r.setDuration(Duration.of(duration, MILLIS));
-               }
+            stop();
 
-               r.scheduleStart(Duration.of(delay, MILLIS));
-            }
-            else
+            if (server != null)
             {
-               System.err.println("FlightRecorder is not available");
+               server.stop();
+               server = null;
             }
          }
+         else
+         {
+            executor = newExecutor();
+
+            // A live profile is written when the JVM exits; recordings are written by JFR
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> invoke(Agent::stopLive)));
+         }
+
+         control = newControl(executor);
+         register(control);
+
+         if (http > 0)
+         {
+            server = new LiveServer(control.getProfile(), http);
+            server.start();
+         }
+
+         if (!idle)
+         {
+            startControl(executor);
+         }
       }
       catch (Exception e)
       {
@@ -115,4 +531,26 @@ public class Agent
          e.printStackTrace();
       }
    }
+
+   /**
+    * Stop the control at exit, if it is in live mode
+    */
+   private static synchronized void stopLive() throws Exception
+   {
+      if (live)
+      {
+         control.stop();
+      }
+   }
+
+   /**
+    * Get the major version of Java; major() is used instead of feature(), since the agent
+    * is built for Java 9, where feature() doesn't exist
+    * @return The value
+    */
+   @SuppressWarnings("deprecation")
+   private static int version()
+   {
+      return Runtime.version().major();
+   }
 }
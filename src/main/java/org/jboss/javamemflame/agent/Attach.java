@@ -0,0 +1,120 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+import java.nio.file.Paths;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Attach; loads the agent into a running JVM, or controls the agent of a running JVM
+ */
+public class Attach
+{
+   /**
+    * Usage
+    */
+   private static void usage()
+   {
+      System.out.println("Usage: java -cp javamemflame.jar org.jboss.javamemflame.agent.Attach <pid> [command|options]");
+      System.out.println("");
+      System.out.println("Commands:");
+      System.out.println("  start : Start recording");
+      System.out.println("  stop  : Stop recording, and write the result");
+      System.out.println("  dump  : Write the data recorded so far");
+      System.out.println("  stats : Show the number of events and bytes");
+      System.out.println("");
+      System.out.println("Otherwise the agent is loaded with the options, like duration=30000");
+   }
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      try
+      {
+         if (args.length == 0 || args.length > 2)
+         {
+            usage();
+            return;
+         }
+
+         String pid = args[0];
+         String command = args.length == 2 ? args[1] : "";
+
+         VirtualMachine vm = VirtualMachine.attach(pid);
+         try
+         {
+            if ("start".equals(command) || "stop".equals(command) ||
+                "dump".equals(command) || "stats".equals(command))
+            {
+               control(vm, command);
+            }
+            else
+            {
+               String jar = Paths.get(Attach.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+               vm.loadAgent(jar, command);
+            }
+         }
+         finally
+         {
+            vm.detach();
+         }
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Invoke a command on the MBean of the agent
+    * @param vm The virtual machine
+    * @param command The command
+    */
+   private static void control(VirtualMachine vm, String command) throws Exception
+   {
+      JMXServiceURL url = new JMXServiceURL(vm.startLocalManagementAgent());
+
+      try (JMXConnector connector = JMXConnectorFactory.connect(url))
+      {
+         MBeanServerConnection mbsc = connector.getMBeanServerConnection();
+         ObjectName on = new ObjectName(Control.NAME);
+
+         if (!mbsc.isRegistered(on))
+         {
+            System.out.println("javamemflame: The agent isn't loaded in " + vm.id());
+            return;
+         }
+
+         if ("stats".equals(command))
+         {
+            System.out.println("Running: " + mbsc.getAttribute(on, "Running"));
+            for (MBeanAttributeInfo mai : mbsc.getMBeanInfo(on).getAttributes())
+            {
+               // Only known in live mode
+               if ("Events".equals(mai.getName()))
+                  System.out.println("Events : " + mbsc.getAttribute(on, "Events"));
+            }
+            System.out.println("Bytes  : " + mbsc.getAttribute(on, "Bytes"));
+         }
+         else
+         {
+            Object result = mbsc.invoke(on, command, null, null);
+            if (result != null)
+               System.out.println(result);
+         }
+      }
+   }
+}
@@ -0,0 +1,203 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Recording;
+import org.jboss.javamemflame.LiveProfile;
+
+/**
+ * Control; starts and stops the recording in one of the modes of the agent, either a
+ * single .jfr file, rotated .jfr files or a live profile. The number of events is only
+ * known in live mode, so it is only part of the MBean in live mode
+ */
+public class Control implements LiveControlMBean
+{
+   /** The object name */
+   static final String NAME = "org.jboss.javamemflame:type=Control";
+
+   private long pid;
+   private LiveProfile profile;
+   private Rotation rotation;
+   private Trigger trigger;
+   private long period;
+   private ScheduledExecutorService ses;
+   private ScheduledFuture<?> check;
+   private Recording recording;
+   private boolean running;
+
+   /**
+    * Constructor
+    * @param pid The process id
+    * @param profile The live profile; null if not in live mode
+    * @param rotation The rotation; null if not rotating
+    * @param trigger The trigger; null if not triggering
+    * @param period The number of milliseconds between the checks of the rotation or the trigger
+    * @param ses The executor
+    */
+   Control(long pid, LiveProfile profile, Rotation rotation, Trigger trigger, long period,
+           ScheduledExecutorService ses)
+   {
+      this.pid = pid;
+      this.profile = profile;
+      this.rotation = rotation;
+      this.trigger = trigger;
+      this.period = period;
+      this.ses = ses;
+      this.check = null;
+      this.recording = null;
+      this.running = false;
+   }
+
+   /**
+    * Get the live profile
+    * @return The value; null if not in live mode
+    */
+   LiveProfile getProfile()
+   {
+      return profile;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized void start() throws Exception
+   {
+      if (running)
+         return;
+
+      if (profile != null)
+      {
+         profile.start();
+      }
+      else if (rotation != null)
+      {
+         rotation.start();
+         check = ses.scheduleAtFixedRate(rotation, period, period, TimeUnit.MILLISECONDS);
+      }
+      else if (trigger != null)
+      {
+         trigger.start();
+         check = ses.scheduleAtFixedRate(trigger, period, period, TimeUnit.MILLISECONDS);
+      }
+      else
+      {
+         recording = Agent.newRecording();
+         recording.setDestination(Paths.get("javamemflame-" + pid + ".jfr"));
+         recording.setToDisk(true);
+         recording.setDumpOnExit(true);
+         recording.start();
+      }
+
+      running = true;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized void stop() throws Exception
+   {
+      if (!running)
+         return;
+
+      running = false;
+
+      if (profile != null)
+      {
+         profile.stop();
+      }
+      else if (rotation != null)
+      {
+         check.cancel(false);
+         rotation.stop();
+      }
+      else if (trigger != null)
+      {
+         check.cancel(false);
+         trigger.stop();
+      }
+      else
+      {
+         // Stopping writes the recording to its destination
+         try
+         {
+            recording.stop();
+         }
+         finally
+         {
+            recording.close();
+            recording = null;
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized String dump() throws Exception
+   {
+      if (!running)
+         throw new IllegalStateException("Not recording");
+
+      if (profile != null)
+      {
+         profile.write();
+         return profile.getOutput().toString();
+      }
+
+      if (trigger != null)
+         return trigger.dump().toString();
+
+      Recording r = rotation != null ? rotation.getCurrent() : recording;
+      Path p = Rotation.snapshot(pid);
+
+      r.dump(p);
+
+      return p.toString();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized boolean isRunning()
+   {
+      return running;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized long getEvents()
+   {
+      // Only registered in live mode
+      return profile != null ? profile.getEvents() : 0;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public synchronized long getBytes()
+   {
+      if (profile != null)
+         return profile.getBytes();
+
+      if (trigger != null)
+         return 0;
+
+      Recording r = rotation != null ? rotation.getCurrent() : recording;
+      return r != null ? r.getSize() : 0;
+   }
+}
@@ -0,0 +1,41 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+/**
+ * Management interface of the agent, registered as org.jboss.javamemflame:type=Control
+ */
+public interface ControlMBean
+{
+   /**
+    * Start recording
+    */
+   void start() throws Exception;
+
+   /**
+    * Stop recording, and write the result
+    */
+   void stop() throws Exception;
+
+   /**
+    * Write the data recorded so far, and keep recording
+    * @return The file written
+    */
+   String dump() throws Exception;
+
+   /**
+    * Is recording
+    * @return True if recording, otherwise false
+    */
+   boolean isRunning();
+
+   /**
+    * Get the number of bytes recorded; the allocated bytes in live mode, otherwise
+    * the size of the complete chunks of the recording
+    * @return The value
+    */
+   long getBytes();
+}
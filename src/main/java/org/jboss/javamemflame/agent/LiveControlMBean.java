@@ -0,0 +1,19 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+/**
+ * Management interface of the agent in live mode, where the allocation events are
+ * seen by the agent
+ */
+public interface LiveControlMBean extends ControlMBean
+{
+   /**
+    * Get the number of allocation events seen
+    * @return The value
+    */
+   long getEvents();
+}
@@ -0,0 +1,227 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import jdk.jfr.Recording;
+
+/**
+ * Rotation; records into timestamped files, and starts a new file when the current one
+ * reaches the maximum size or the interval has passed. Every file is a recording of its
+ * own, so each file can be processed without the others.
+ *
+ * The next recording is started before the current one is stopped, so the events of the
+ * few milliseconds in between are in both files, and are counted twice when adjacent files
+ * are processed together
+ */
+class Rotation implements Runnable
+{
+   /** The format of the timestamps of the files */
+   static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+   /** The file name of a rotated file after the prefix */
+   private static final Pattern FILE = Pattern.compile("\\d{8}-\\d{6}-\\d{3}\\.jfr");
+
+   private String prefix;
+   private long maxSize;
+   private long maxAge;
+   private long interval;
+   private int keep;
+   private Recording current;
+   private long started;
+
+   /**
+    * Constructor
+    * @param pid The process id
+    * @param maxSize The maximum size of a file in bytes; 0 for no limit
+    * @param maxAge The maximum age of a file in milliseconds; 0 for no limit
+    * @param interval The number of milliseconds between rotations; 0 for no limit
+    * @param keep The number of files to keep; 0 for no limit
+    */
+   Rotation(long pid, long maxSize, long maxAge, long interval, int keep)
+   {
+      this.prefix = "javamemflame-" + pid + "-";
+      this.maxSize = maxSize;
+      this.maxAge = maxAge;
+      this.interval = interval;
+      this.keep = keep;
+      this.current = null;
+      this.started = 0;
+   }
+
+   /**
+    * Start the first recording
+    */
+   synchronized void start()
+   {
+      current = open();
+   }
+
+   /**
+    * Stop the current recording, and write it
+    */
+   synchronized void stop()
+   {
+      if (current != null)
+      {
+         close(current);
+         current = null;
+         expire();
+      }
+   }
+
+   /**
+    * Get the current recording
+    * @return The value; null if stopped
+    */
+   synchronized Recording getCurrent()
+   {
+      return current;
+   }
+
+   /**
+    * Rotate if the current recording is too large or too old
+    */
+   @Override
+   public synchronized void run()
+   {
+      if (current == null)
+         return;
+
+      long now = System.currentTimeMillis();
+
+      // The size of a recording grows a chunk at a time, as only the complete chunks are counted
+      if ((interval > 0 && now - started >= interval) || (maxSize > 0 && current.getSize() >= maxSize))
+      {
+         // The next recording is started first, so no events are lost
+         Recording old = current;
+         current = open();
+         close(old);
+         expire();
+      }
+   }
+
+   /**
+    * Get the path of a snapshot, which is named apart from the rotated files, so it
+    * isn't expired with them
+    * @param pid The process id
+    * @return The path
+    */
+   static Path snapshot(long pid)
+   {
+      return Paths.get("javamemflame-" + pid + "-snapshot-" + TIMESTAMP.format(LocalDateTime.now()) + ".jfr");
+   }
+
+   /**
+    * Open a recording into a new timestamped file. The recording is written when
+    * it is stopped, or when the JVM exits
+    * @return The recording
+    */
+   private Recording open()
+   {
+      Recording r = Agent.newRecording();
+      LocalDateTime ldt = LocalDateTime.now();
+
+      try
+      {
+         r.setDestination(Paths.get(prefix + TIMESTAMP.format(ldt) + ".jfr"));
+      }
+      catch (IOException ioe)
+      {
+         System.err.println(ioe.getMessage());
+         ioe.printStackTrace();
+      }
+
+      r.setToDisk(true);
+      r.setDumpOnExit(true);
+      r.start();
+      started = System.currentTimeMillis();
+
+      return r;
+   }
+
+   /**
+    * Stop a recording, which writes it to its destination
+    * @param r The recording
+    */
+   private void close(Recording r)
+   {
+      try
+      {
+         r.stop();
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         e.printStackTrace();
+      }
+      finally
+      {
+         r.close();
+      }
+   }
+
+   /**
+    * Delete the oldest rotated files beyond the number to keep, and the rotated files
+    * beyond the maximum age. Other files with the same prefix, like the snapshots, are
+    * kept
+    */
+   private void expire()
+   {
+      if (keep <= 0 && maxAge <= 0)
+         return;
+
+      List<Path> files = new ArrayList<>();
+
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get("."), prefix + "*.jfr"))
+      {
+         for (Path p : ds)
+         {
+            if (FILE.matcher(p.getFileName().toString().substring(prefix.length())).matches())
+               files.add(p);
+         }
+      }
+      catch (IOException ioe)
+      {
+         System.err.println(ioe.getMessage());
+         ioe.printStackTrace();
+         return;
+      }
+
+      // The timestamps sort in the order of the files, newest first
+      Collections.sort(files, Collections.reverseOrder());
+
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < files.size(); i++)
+      {
+         Path p = files.get(i);
+
+         try
+         {
+            if ((keep > 0 && i >= keep) ||
+                (maxAge > 0 && now - Files.getLastModifiedTime(p).toMillis() > maxAge))
+            {
+               Files.deleteIfExists(p);
+            }
+         }
+         catch (IOException ioe)
+         {
+            System.err.println(ioe.getMessage());
+            ioe.printStackTrace();
+         }
+      }
+   }
+}
@@ -0,0 +1,317 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame.agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import jdk.jfr.Recording;
+
+/**
+ * Trigger; keeps a ring of the recent allocations, and writes a snapshot of it when the
+ * allocation rate goes above a threshold, or when it is triggered by a signal or a file.
+ * The snapshot is written some time after the trigger, so it covers both the time before
+ * and the time after it.
+ *
+ * The ring is a JFR recording on disk with a maximum age, not an in-memory ring; a recording
+ * kept in memory only is bounded by the size of the JFR buffers instead of by time. So the
+ * events are written to the chunks of the JFR repository all the time, and the disk holds
+ * the events of the maximum age, plus the current chunk, as the old chunks are removed
+ * when a chunk is rotated.
+ *
+ * The signals are handled through sun.misc.Signal, which is looked up by reflection, as it
+ * isn't available on every JVM; the trigger file works everywhere
+ */
+class Trigger implements Runnable
+{
+   /** The started trigger of each signal with a handler; a handler is registered once */
+   private static final Map<String, Trigger> SIGNALS = new HashMap<>();
+
+   private long pid;
+   private long threshold;
+   private long window;
+   private long before;
+   private long after;
+   private Path file;
+   private com.sun.management.ThreadMXBean threads;
+   private Map<Long, Long> allocated;
+   private Deque<long[]> samples;
+   private long sampled;
+   private Recording ring;
+   private long pending;
+   private String signal;
+
+   /**
+    * Constructor
+    * @param pid The process id
+    * @param threshold The allocation rate in bytes per second; 0 for none
+    * @param window The number of milliseconds the rate is measured over
+    * @param before The number of milliseconds before the trigger in the snapshot
+    * @param after The number of milliseconds after the trigger in the snapshot
+    * @param file The file which triggers a snapshot when it exists; null for none
+    */
+   Trigger(long pid, long threshold, long window, long before, long after, Path file)
+   {
+      this.pid = pid;
+      this.threshold = threshold;
+      this.window = window;
+      this.before = before;
+      this.after = after;
+      this.file = file;
+      this.threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      this.allocated = new HashMap<>();
+      this.samples = new ArrayDeque<>();
+      this.sampled = 0;
+      this.ring = null;
+      this.pending = 0;
+      this.signal = null;
+   }
+
+   /**
+    * Start the ring
+    */
+   synchronized void start()
+   {
+      // On disk, as the maximum age only applies to the chunks of the repository
+      ring = Agent.newRecording();
+      ring.setToDisk(true);
+      ring.setMaxAge(Duration.ofMillis(before + after));
+      ring.start();
+
+      allocated.clear();
+      samples.clear();
+      sampled = System.currentTimeMillis();
+      sample();
+      pending = 0;
+
+      if (signal != null)
+         register(signal, this);
+   }
+
+   /**
+    * Stop the ring; the recording isn't written
+    */
+   synchronized void stop()
+   {
+      if (ring != null)
+      {
+         ring.close();
+         ring = null;
+      }
+
+      // The handler stays registered, but it no longer refers to this trigger
+      if (signal != null)
+      {
+         synchronized (SIGNALS)
+         {
+            if (SIGNALS.get(signal) == this)
+               SIGNALS.put(signal, null);
+         }
+      }
+   }
+
+   /**
+    * Trigger a snapshot, unless one is pending already
+    */
+   synchronized void trigger()
+   {
+      if (ring != null && pending == 0)
+         pending = System.currentTimeMillis() + after;
+   }
+
+   /**
+    * Trigger a snapshot when the JVM receives a signal, while the ring is started
+    * @param signal The name of the signal, like HUP
+    */
+   void handle(String signal)
+   {
+      this.signal = signal;
+   }
+
+   /**
+    * Make a trigger the target of a signal, registering the handler of the signal
+    * the first time
+    * @param signal The name of the signal
+    * @param t The trigger
+    */
+   private static void register(String signal, Trigger t)
+   {
+      synchronized (SIGNALS)
+      {
+         if (!SIGNALS.containsKey(signal))
+         {
+            try
+            {
+               Class<?> signalClass = Class.forName("sun.misc.Signal");
+               Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+
+               Object handler = Proxy.newProxyInstance(Trigger.class.getClassLoader(), new Class<?>[] {handlerClass},
+                                                       new InvocationHandler()
+               {
+                  public Object invoke(Object proxy, Method method, Object[] args)
+                  {
+                     if ("handle".equals(method.getName()))
+                     {
+                        fire(signal);
+                        return null;
+                     }
+
+                     if ("equals".equals(method.getName()))
+                        return proxy == args[0];
+
+                     if ("hashCode".equals(method.getName()))
+                        return System.identityHashCode(proxy);
+
+                     return "javamemflame-" + signal;
+                  }
+               });
+
+               signalClass.getMethod("handle", signalClass, handlerClass)
+                  .invoke(null, signalClass.getConstructor(String.class).newInstance(signal), handler);
+            }
+            catch (Throwable e)
+            {
+               Throwable cause = e.getCause() != null ? e.getCause() : e;
+               System.err.println("Unable to handle the signal " + signal + " (" + cause.getMessage() + "); use triggerfile instead");
+               return;
+            }
+         }
+
+         SIGNALS.put(signal, t);
+      }
+   }
+
+   /**
+    * Trigger the target of a signal, if any
+    * @param signal The name of the signal
+    */
+   private static void fire(String signal)
+   {
+      Trigger t;
+      synchronized (SIGNALS)
+      {
+         t = SIGNALS.get(signal);
+      }
+
+      if (t != null)
+         t.trigger();
+   }
+
+   /**
+    * Write a snapshot of the ring now
+    * @return The file written
+    */
+   synchronized Path dump() throws Exception
+   {
+      Path p = Rotation.snapshot(pid);
+      ring.dump(p);
+      return p;
+   }
+
+   /**
+    * Measure the allocation rate, check the triggers, and write a pending snapshot
+    */
+   @Override
+   public synchronized void run()
+   {
+      if (ring == null)
+         return;
+
+      long now = System.currentTimeMillis();
+
+      samples.addLast(new long[] {now, sample()});
+      while (samples.size() > 1 && samples.peekFirst()[0] <= now - window)
+      {
+         samples.removeFirst();
+      }
+
+      if (threshold > 0 && now - sampled >= window && rate() > threshold)
+         trigger();
+
+      if (file != null && Files.exists(file))
+      {
+         try
+         {
+            Files.deleteIfExists(file);
+         }
+         catch (Exception e)
+         {
+            System.err.println(e.getMessage());
+            e.printStackTrace();
+         }
+
+         trigger();
+      }
+
+      if (pending != 0 && now >= pending)
+      {
+         try
+         {
+            System.out.println("javamemflame: Writing " + dump());
+         }
+         catch (Exception e)
+         {
+            System.err.println(e.getMessage());
+            e.printStackTrace();
+         }
+
+         // The rate is measured again from now, so the same spike doesn't trigger again
+         pending = 0;
+         samples.clear();
+         sampled = now;
+      }
+   }
+
+   /**
+    * Get the allocation rate over the window
+    * @return The number of bytes per second
+    */
+   private long rate()
+   {
+      long bytes = 0;
+      for (long[] s : samples)
+      {
+         bytes += s[1];
+      }
+
+      return bytes * 1000 / window;
+   }
+
+   /**
+    * Get the number of bytes allocated by all threads since the previous sample. The
+    * allocations of threads which have ended since then aren't included
+    * @return The value
+    */
+   private long sample()
+   {
+      long[] ids = threads.getAllThreadIds();
+      long[] bytes = threads.getThreadAllocatedBytes(ids);
+      Map<Long, Long> current = new HashMap<>();
+      long delta = 0;
+
+      for (int i = 0; i < ids.length; i++)
+      {
+         if (bytes[i] >= 0)
+         {
+            Long previous = allocated.get(ids[i]);
+            delta += bytes[i] - (previous != null ? previous.longValue() : 0);
+            current.put(ids[i], bytes[i]);
+         }
+      }
+
+      allocated = current;
+
+      return delta;
+   }
+}
@@ -0,0 +1,208 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Call tree tests
+ */
+public class CallTreeTest
+{
+   private FrameTable ft;
+   private int a;
+   private int b;
+   private int named;
+   private int type;
+   private int[] children;
+
+   /**
+    * The frames under 5% of the total are coalesced into an other frame per parent, which
+    * isn't the frame that is named other
+    */
+   @Test
+   public void testMinPercent() throws Exception
+   {
+      CallTree tree = build();
+      prune(tree, 5.0, 0.0, 0.0, 0);
+      assertMinTotal(tree);
+   }
+
+   /**
+    * The frames under 59 of the 1180 pixels are coalesced, which is the same minimum
+    * total as 5%
+    */
+   @Test
+   public void testMinWidth() throws Exception
+   {
+      CallTree tree = build();
+      prune(tree, 0.0, 0.0, 59.0, 0);
+      assertMinTotal(tree);
+   }
+
+   /**
+    * The frames under 10% of their parent are coalesced
+    */
+   @Test
+   public void testMinParent() throws Exception
+   {
+      CallTree tree = build();
+      prune(tree, 0.0, 10.0, 0.0, 0);
+
+      CallTree.Node na = find(tree.getRoot(), a);
+      assertNotNull(find(na, children[0]));
+      assertNotNull(find(na, children[1]));
+      assertNull(find(na, children[2]));
+      assertNull(find(na, children[3]));
+      assertEquals(100, find(na, ft.other()).getTotal(true));
+
+      assertNull(find(tree.getRoot(), b));
+      assertNull(find(tree.getRoot(), named));
+      assertEquals(130, find(tree.getRoot(), ft.other()).getTotal(true));
+
+      assertConserved(tree.getRoot());
+   }
+
+   /**
+    * The frames are kept by their totals until the budget is used, including the
+    * other frames
+    */
+   @Test
+   public void testMaxElements() throws Exception
+   {
+      CallTree tree = build();
+      prune(tree, 0.0, 0.0, 0.0, 5);
+
+      // a1 would take 6 nodes with the other frame of its child
+      assertEquals(4, tree.size());
+
+      CallTree.Node na = find(tree.getRoot(), a);
+      assertNull(find(na, children[0]));
+      assertEquals(1000, find(na, ft.other()).getTotal(true));
+      assertEquals(130, find(tree.getRoot(), ft.other()).getTotal(true));
+
+      assertConserved(tree.getRoot());
+   }
+
+   /**
+    * The other frame has a reserved id, which isn't included
+    */
+   @Test
+   public void testOther()
+   {
+      FrameTable table = new FrameTable(Collections.singleton("other"));
+      int id = table.name("other");
+
+      assertNotEquals(id, table.other());
+      assertEquals(table.other(), table.other());
+      assertEquals("other", table.getLabel(table.other()));
+      assertTrue(table.isIncluded(id));
+      assertFalse(table.isIncluded(table.other()));
+   }
+
+   /**
+    * A tree of 1130 bytes; a with children of 600, 300, 60 and 40, b of 30, and a frame
+    * named other of 100
+    */
+   private CallTree build()
+   {
+      ft = new FrameTable(null);
+      a = ft.name("a");
+      b = ft.name("b");
+      named = ft.name("other");
+      type = ft.name("T");
+      children = new int[] {ft.name("a1"), ft.name("a2"), ft.name("a3"), ft.name("a4")};
+
+      CallTree tree = new CallTree();
+      long[] values = new long[] {600, 300, 60, 40};
+      for (int i = 0; i < children.length; i++)
+      {
+         tree.add(new int[] {a, children[i]}, type, values[i], 1);
+      }
+      tree.add(new int[] {b}, type, 30, 1);
+      tree.add(new int[] {named}, type, 100, 1);
+
+      return tree;
+   }
+
+   /**
+    * Prune a tree the way a flame graph does
+    */
+   private void prune(CallTree tree, double minPercent, double minParent, double minWidth, int maxElements)
+      throws Exception
+   {
+      Flamegraph flamegraph = new Flamegraph("Test", ft, tree, true, minPercent, minParent, minWidth, maxElements);
+      flamegraph.write(Channels.newChannel(new ByteArrayOutputStream()));
+
+      assertEquals(1130, tree.getTotal(true));
+      assertEquals(6, tree.getTotal(false));
+   }
+
+   /**
+    * The tree pruned with a minimum total of 57 bytes
+    */
+   private void assertMinTotal(CallTree tree)
+   {
+      CallTree.Node na = find(tree.getRoot(), a);
+      assertNotNull(find(na, children[0]));
+      assertNotNull(find(na, children[1]));
+      assertNotNull(find(na, children[2]));
+      assertNull(find(na, children[3]));
+      assertEquals(40, find(na, ft.other()).getTotal(true));
+
+      assertNull(find(tree.getRoot(), b));
+      assertEquals(100, find(tree.getRoot(), named).getTotal(true));
+      assertEquals(30, find(tree.getRoot(), ft.other()).getTotal(true));
+
+      assertConserved(tree.getRoot());
+   }
+
+   /**
+    * The total of each node is its own value and the totals of its children
+    */
+   private static void assertConserved(CallTree.Node node)
+   {
+      long bytes = node.getSelf(true);
+      long count = node.getSelf(false);
+
+      for (CallTree.Node child : node.getChildren())
+      {
+         if (child != null)
+         {
+            bytes += child.getTotal(true);
+            count += child.getTotal(false);
+            assertConserved(child);
+         }
+      }
+
+      assertEquals(node.getTotal(true), bytes);
+      assertEquals(node.getTotal(false), count);
+   }
+
+   /**
+    * Find a child without adding it
+    */
+   private static CallTree.Node find(CallTree.Node node, int id)
+   {
+      for (CallTree.Node child : node.getChildren())
+      {
+         if (child != null && child.getId() == id)
+            return child;
+      }
+
+      return null;
+   }
+}
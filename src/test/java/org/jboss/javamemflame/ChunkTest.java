@@ -0,0 +1,184 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Chunk tests
+ */
+public class ChunkTest
+{
+   private Path directory;
+   private Path file;
+
+   @Name("javamemflame.Test")
+   static class TestEvent extends Event
+   {
+      int value;
+   }
+
+   /**
+    * A file of two recordings, one after the other
+    */
+   @Before
+   public void setUp() throws Exception
+   {
+      directory = Files.createTempDirectory("javamemflame-test");
+      file = directory.resolve("concatenated.jfr");
+
+      Files.write(file, record(1), StandardOpenOption.CREATE_NEW);
+      Files.write(file, record(2), StandardOpenOption.APPEND);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      for (Path p : Files.newDirectoryStream(directory))
+      {
+         Files.delete(p);
+      }
+      Files.delete(directory);
+   }
+
+   /**
+    * Each recording is a chunk, and the extracted chunks are read on their own
+    */
+   @Test
+   public void testFind() throws Exception
+   {
+      List<Chunk> chunks = Chunk.find(file);
+
+      assertEquals(2, chunks.size());
+      assertEquals(0, chunks.get(0).getOffset());
+      assertEquals(chunks.get(0).getSize(), chunks.get(1).getOffset());
+      assertEquals(Files.size(file), chunks.get(1).getOffset() + chunks.get(1).getSize());
+
+      for (int i = 0; i < chunks.size(); i++)
+      {
+         Path p = chunks.get(i).extract();
+         try
+         {
+            assertEquals(chunks.get(i).getSize(), Files.size(p));
+            assertEquals(Arrays.asList(i + 1), values(p));
+         }
+         finally
+         {
+            Files.delete(p);
+         }
+      }
+   }
+
+   /**
+    * A file with a partial chunk at the end is a single chunk
+    */
+   @Test
+   public void testPartial() throws Exception
+   {
+      byte[] b = Files.readAllBytes(file);
+      Path partial = directory.resolve("partial.jfr");
+      Files.write(partial, Arrays.copyOf(b, b.length - 1));
+
+      List<Chunk> chunks = Chunk.find(partial);
+
+      assertEquals(1, chunks.size());
+      assertEquals(0, chunks.get(0).getOffset());
+      assertEquals(b.length - 1, chunks.get(0).getSize());
+   }
+
+   /**
+    * The copy of a chunk which can't be read is deleted
+    */
+   @Test
+   public void testExtractFailure() throws Exception
+   {
+      Chunk chunk = new Chunk(file, 0, Files.size(file) + 1);
+      long before = temporaryFiles();
+
+      try
+      {
+         chunk.extract();
+         fail();
+      }
+      catch (IOException ioe)
+      {
+         assertEquals(before, temporaryFiles());
+      }
+   }
+
+   /**
+    * Make a recording with a single test event
+    * @param value The value of the event
+    * @return The recording
+    */
+   private byte[] record(int value) throws Exception
+   {
+      Path p = directory.resolve("recording-" + value + ".jfr");
+
+      try (Recording r = new Recording())
+      {
+         r.enable(TestEvent.class);
+         r.start();
+
+         TestEvent e = new TestEvent();
+         e.value = value;
+         e.commit();
+
+         r.stop();
+         r.dump(p);
+      }
+
+      byte[] b = Files.readAllBytes(p);
+      Files.delete(p);
+      return b;
+   }
+
+   /**
+    * The values of the test events of a file
+    */
+   private static List<Integer> values(Path p) throws Exception
+   {
+      List<Integer> l = new ArrayList<>();
+
+      for (RecordedEvent re : RecordingFile.readAllEvents(p))
+      {
+         if ("javamemflame.Test".equals(re.getEventType().getName()))
+            l.add(re.getInt("value"));
+      }
+
+      return l;
+   }
+
+   /**
+    * The number of files of javamemflame in the temporary directory
+    */
+   private static long temporaryFiles() throws Exception
+   {
+      try (Stream<Path> s = Files.list(Paths.get(System.getProperty("java.io.tmpdir"))))
+      {
+         return s.filter(p -> p.getFileName().toString().startsWith("javamemflame")).count();
+      }
+   }
+}
@@ -0,0 +1,190 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counter table tests
+ */
+public class CounterTableTest
+{
+   /**
+    * The entries are added to, and keep their index
+    */
+   @Test
+   public void testAdd()
+   {
+      CounterTable ct = new CounterTable(16);
+
+      ct.add(42L, 100, 1);
+      ct.add(-1L, 200, 2);
+      ct.add(42L, 10, 1);
+
+      assertEquals(2, ct.size());
+      assertEquals(0, ct.index(42L));
+      assertEquals(1, ct.index(-1L));
+      assertEquals(42L, ct.getKey(0));
+      assertEquals(110, ct.getBytes(0));
+      assertEquals(2, ct.getCount(0));
+      assertEquals(-1L, ct.getKey(1));
+      assertEquals(200, ct.getBytes(1));
+      assertEquals(2, ct.getCount(1));
+   }
+
+   /**
+    * The table grows past its capacity, and keeps the order and the values of the entries
+    */
+   @Test
+   public void testGrow()
+   {
+      CounterTable ct = new CounterTable(16);
+
+      for (int i = 0; i < 1000; i++)
+      {
+         ct.add(key(i), i, 1);
+      }
+
+      assertEquals(1000, ct.size());
+      for (int i = 0; i < 1000; i++)
+      {
+         assertEquals(i, ct.index(key(i)));
+         assertEquals(key(i), ct.getKey(i));
+         assertEquals(i, ct.getBytes(i));
+         assertEquals(1, ct.getCount(i));
+      }
+      assertEquals(1000, ct.size());
+   }
+
+   /**
+    * A table with few entries clears the slots of its entries only
+    */
+   @Test
+   public void testSparseClear()
+   {
+      CounterTable ct = new CounterTable(1024);
+
+      for (int i = 0; i < 10; i++)
+      {
+         ct.add(key(i), 100, 1);
+      }
+
+      ct.clear();
+      assertCleared(ct, 10);
+   }
+
+   /**
+    * A table with many entries clears all slots
+    */
+   @Test
+   public void testFullClear()
+   {
+      CounterTable ct = new CounterTable(64);
+
+      for (int i = 0; i < 60; i++)
+      {
+         ct.add(key(i), 100, 1);
+      }
+
+      ct.clear();
+      assertCleared(ct, 60);
+   }
+
+   /**
+    * Keys with the same slot are chained, also around the end of the slots, and the
+    * chains are cleared
+    */
+   @Test
+   public void testCollisions()
+   {
+      // 64 entries have 128 slots
+      int mask = 127;
+      long[] keys = new long[5];
+      int n = 0;
+
+      // Four keys for the last slot, which wrap around to the first slots
+      for (long k = 0; n < 4; k++)
+      {
+         if ((CounterTable.mix(k) & mask) == mask)
+            keys[n++] = k;
+      }
+
+      // A key for the first slot, which is taken by the chain already
+      for (long k = 0; n < 5; k++)
+      {
+         if ((CounterTable.mix(k) & mask) == 0)
+            keys[n++] = k;
+      }
+
+      CounterTable ct = new CounterTable(64);
+      for (int i = 0; i < keys.length; i++)
+      {
+         ct.add(keys[i], i + 1, 1);
+      }
+
+      assertEquals(keys.length, ct.size());
+      for (int i = 0; i < keys.length; i++)
+      {
+         assertEquals(i, ct.index(keys[i]));
+         assertEquals(i + 1, ct.getBytes(i));
+      }
+
+      // Sparse, so only the chains are cleared
+      ct.clear();
+      assertEquals(0, ct.size());
+
+      for (int i = keys.length - 1; i >= 0; i--)
+      {
+         ct.add(keys[i], 1, 1);
+      }
+
+      for (int i = 0; i < keys.length; i++)
+      {
+         int index = ct.index(keys[i]);
+         assertEquals(keys.length - 1 - i, index);
+         assertEquals(1, ct.getBytes(index));
+         assertEquals(1, ct.getCount(index));
+      }
+      assertEquals(keys.length, ct.size());
+   }
+
+   /**
+    * Check that a table has no entries left, by adding the keys again in reverse order;
+    * a slot left behind would find the entry of the key at its old index
+    * @param ct The table
+    * @param n The number of keys that were added
+    */
+   private static void assertCleared(CounterTable ct, int n)
+   {
+      assertEquals(0, ct.size());
+
+      for (int i = n - 1; i >= 0; i--)
+      {
+         ct.add(key(i), 1, 1);
+      }
+
+      assertEquals(n, ct.size());
+      for (int i = 0; i < n; i++)
+      {
+         int index = ct.index(key(i));
+         assertEquals(n - 1 - i, index);
+         assertEquals(1, ct.getBytes(index));
+         assertEquals(1, ct.getCount(index));
+      }
+   }
+
+   /**
+    * A key like the ones of ProcessEvent, an id in each half
+    * @param i The number
+    * @return The key
+    */
+   private static long key(int i)
+   {
+      return ((long)i << 32) | (i % 7);
+   }
+}
@@ -0,0 +1,106 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Diff tests
+ */
+public class DiffTest
+{
+   /**
+    * The baseline is scaled to the total of the candidate, and the rows are ordered
+    * from the largest increase to the largest decrease
+    */
+   @Test
+   public void testScaleAndOrder()
+   {
+      FrameTable ft = new FrameTable(null);
+      int a = ft.name("a");
+      int b = ft.name("b");
+      int c = ft.name("c");
+      int d = ft.name("d");
+      int type = ft.name("T");
+
+      CallTree baseline = new CallTree();
+      baseline.add(new int[] {a}, type, 100, 1);
+      baseline.add(new int[] {b}, type, 100, 1);
+      baseline.add(new int[] {d}, type, 100, 1);
+
+      // Twice the total of the baseline
+      CallTree candidate = new CallTree();
+      candidate.add(new int[] {a}, type, 300, 3);
+      candidate.add(new int[] {b}, type, 100, 1);
+      candidate.add(new int[] {c}, type, 200, 2);
+
+      List<Diff.Row> rows = new Diff(baseline, candidate, true).getRows();
+
+      assertEquals(4, rows.size());
+      assertRow(rows.get(0), c, 200, 0, 200);
+      assertRow(rows.get(1), a, 100, 200, 300);
+      assertRow(rows.get(2), b, -100, 200, 100);
+      assertRow(rows.get(3), d, -200, 200, 0);
+   }
+
+   /**
+    * The stacks with the same change are ordered by their frames
+    */
+   @Test
+   public void testTies()
+   {
+      FrameTable ft = new FrameTable(null);
+      int x = ft.name("x");
+      int y = ft.name("y");
+      int type = ft.name("T");
+
+      CallTree candidate = new CallTree();
+      candidate.add(new int[] {y}, type, 100, 1);
+      candidate.add(new int[] {x}, type, 100, 1);
+
+      List<Diff.Row> rows = new Diff(new CallTree(), candidate, true).getRows();
+
+      assertEquals(2, rows.size());
+      assertRow(rows.get(0), x, 100, 0, 100);
+      assertRow(rows.get(1), y, 100, 0, 100);
+   }
+
+   /**
+    * The stacks are compared by count as well
+    */
+   @Test
+   public void testCount()
+   {
+      FrameTable ft = new FrameTable(null);
+      int a = ft.name("a");
+      int type = ft.name("T");
+
+      CallTree baseline = new CallTree();
+      baseline.add(new int[] {a}, type, 100, 4);
+
+      CallTree candidate = new CallTree();
+      candidate.add(new int[] {a}, type, 100, 1);
+      candidate.add(new int[] {a, a}, type, 0, 3);
+
+      List<Diff.Row> rows = new Diff(baseline, candidate, false).getRows();
+
+      assertEquals(2, rows.size());
+      assertEquals(3, rows.get(0).delta);
+      assertEquals(3, rows.get(0).node.getDepth());
+      assertRow(rows.get(1), a, -3, 4, 1);
+   }
+
+   private static void assertRow(Diff.Row row, int frame, long delta, long baseline, long candidate)
+   {
+      assertEquals(frame, row.node.getParent().getId());
+      assertEquals(delta, row.delta);
+      assertEquals(baseline, row.baseline);
+      assertEquals(candidate, row.candidate);
+   }
+}
@@ -0,0 +1,133 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Frame table tests
+ */
+public class FrameTableTest
+{
+   /**
+    * A frame per thread has the name of the thread
+    */
+   @Test
+   public void testThread()
+   {
+      FrameTable ft = new FrameTable(null);
+      ft.setThreads(FrameTable.THREADS_THREAD, null, null);
+
+      int t1 = ft.thread("pool-1-thread-2");
+      int t2 = ft.thread("pool-1-thread-3");
+
+      assertNotEquals(t1, t2);
+      assertEquals("[pool-1-thread-2]", ft.getLabel(t1));
+      assertEquals("[pool-1-thread-3]", ft.getLabel(t2));
+      assertEquals(t1, ft.thread("pool-1-thread-2"));
+   }
+
+   /**
+    * A frame per pool has the name of the thread with the numbers normalized, so the
+    * threads of a pool share it
+    */
+   @Test
+   public void testPool()
+   {
+      FrameTable ft = new FrameTable(null);
+      ft.setThreads(FrameTable.THREADS_POOL, null, null);
+
+      int t1 = ft.thread("pool-1-thread-2");
+      int t2 = ft.thread("pool-12-thread-345");
+      int main = ft.thread("main");
+
+      assertEquals(t1, t2);
+      assertEquals("[pool-#-thread-#]", ft.getLabel(t1));
+      assertEquals("[main]", ft.getLabel(main));
+   }
+
+   /**
+    * The thread filters match the name or the normalized name, and without thread frames
+    * the included threads have no frame
+    */
+   @Test
+   public void testThreadFilter()
+   {
+      FrameTable ft = new FrameTable(null);
+      ft.setThreads(FrameTable.THREADS_NONE, Collections.singleton("worker-#"), Collections.singleton("worker-13"));
+
+      assertEquals(CallTree.ROOT, ft.thread("worker-1"));
+      assertEquals(CallTree.ROOT, ft.thread("worker-2"));
+      assertEquals(FrameTable.EXCLUDED, ft.thread("worker-13"));
+      assertEquals(FrameTable.EXCLUDED, ft.thread("main"));
+   }
+
+   /**
+    * A frame without a position or a type is the method itself
+    */
+   @Test
+   public void testMethodFrame()
+   {
+      FrameTable ft = new FrameTable(null);
+      int method = ft.method("com.acme.Service", "handle");
+
+      assertEquals("com/acme/Service:.handle", ft.getLabel(method));
+      assertEquals(method, ft.frame(method, -1, -1, FrameTable.TYPE_NONE));
+   }
+
+   /**
+    * The line number is used over the bytecode index, and a frame has the suffix of its type
+    */
+   @Test
+   public void testFrameLabels()
+   {
+      FrameTable ft = new FrameTable(null);
+      int method = ft.method("com.acme.Service", "handle");
+
+      assertEquals("com/acme/Service:.handle:42", label(ft, method, 42, 7, FrameTable.TYPE_NONE));
+      assertEquals("com/acme/Service:.handle@7", label(ft, method, -1, 7, FrameTable.TYPE_NONE));
+      assertEquals("com/acme/Service:.handle_[0]", label(ft, method, -1, -1, FrameTable.TYPE_INTERPRETED));
+      assertEquals("com/acme/Service:.handle:42_[j]", label(ft, method, 42, 7, FrameTable.TYPE_JIT));
+      assertEquals("com/acme/Service:.handle@7_[i]", label(ft, method, -1, 7, FrameTable.TYPE_INLINED));
+      assertEquals("com/acme/Service:.handle_[n]", label(ft, method, -1, -1, FrameTable.TYPE_NATIVE));
+   }
+
+   /**
+    * The method, the position and the type are packed into the key of a frame without
+    * overlapping, so frames only share an id when all of them are the same
+    */
+   @Test
+   public void testFramePacking()
+   {
+      FrameTable ft = new FrameTable(null);
+      int m1 = ft.method("com.acme.Service", "handle");
+      int m2 = ft.method("com.acme.Service", "close");
+
+      int f = ft.frame(m1, 42, -1, FrameTable.TYPE_JIT);
+      assertEquals(f, ft.frame(m1, 42, -1, FrameTable.TYPE_JIT));
+      assertEquals(f, ft.frame(m1, 42, 7, FrameTable.TYPE_JIT));
+
+      assertNotEquals(f, ft.frame(m2, 42, -1, FrameTable.TYPE_JIT));
+      assertNotEquals(f, ft.frame(m1, 43, -1, FrameTable.TYPE_JIT));
+      assertNotEquals(f, ft.frame(m1, 42, -1, FrameTable.TYPE_INLINED));
+
+      // Line 0 and bytecode index 0, and the largest line and an unknown position
+      assertNotEquals(ft.frame(m1, 0, -1, FrameTable.TYPE_NONE), ft.frame(m1, -1, 0, FrameTable.TYPE_NONE));
+      assertNotEquals(ft.frame(m1, (1 << 28) - 1, -1, FrameTable.TYPE_JIT),
+                      ft.frame(m1, -1, -1, FrameTable.TYPE_JIT));
+      assertEquals("com/acme/Service:.handle:268435455_[j]", label(ft, m1, (1 << 28) - 1, -1, FrameTable.TYPE_JIT));
+      assertEquals("com/acme/Service:.handle@65535", label(ft, m1, -1, 65535, FrameTable.TYPE_NONE));
+   }
+
+   private static String label(FrameTable ft, int method, int line, int bci, int type)
+   {
+      return ft.getLabel(ft.frame(method, line, bci, type));
+   }
+}
@@ -0,0 +1,81 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Live server tests
+ */
+public class LiveServerTest
+{
+   private LiveServer server;
+   private int port;
+
+   @Before
+   public void start() throws Exception
+   {
+      try (ServerSocket ss = new ServerSocket(0, 0, InetAddress.getLoopbackAddress()))
+      {
+         port = ss.getLocalPort();
+      }
+
+      LiveProfile profile = new LiveProfile(Paths.get("javamemflame-test.jmf"), false, 0, null, 0);
+      server = new LiveServer(profile, port);
+      server.start();
+   }
+
+   @After
+   public void stop()
+   {
+      server.stop();
+   }
+
+   /**
+    * The title is escaped in the flame graph
+    */
+   @Test
+   public void testTitle() throws Exception
+   {
+      String title = "<script>alert(1)</script> & \"quoted\"";
+      String svg = get("/svg?title=" + URLEncoder.encode(title, "UTF-8"));
+
+      assertFalse(svg.contains("<script>"));
+      assertTrue(svg.contains(">&lt;script&gt;alert(1)&lt;/script&gt; &amp; &quot;quoted&quot;</text>"));
+   }
+
+   private String get(String path) throws Exception
+   {
+      HttpURLConnection c = (HttpURLConnection)new URL("http://localhost:" + port + path).openConnection();
+      try
+      {
+         assertEquals(200, c.getResponseCode());
+
+         try (InputStream is = c.getInputStream())
+         {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+         }
+      }
+      finally
+      {
+         c.disconnect();
+      }
+   }
+}
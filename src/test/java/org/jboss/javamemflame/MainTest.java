@@ -0,0 +1,119 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Main tests
+ */
+public class MainTest
+{
+   /**
+    * All stacks over the cut off are selected by value, and stacks of the same value
+    * by their frame ids, followed by the Filtered stack with the rest
+    */
+   @Test
+   public void testSelect()
+   {
+      FrameTable ft = new FrameTable(null);
+      int[] frames = frames(ft);
+      int type = ft.name("T");
+      CallTree tree = build(frames, type);
+
+      List<CallTree.Node> stacks = Main.select(tree, ft, true, 20, 0);
+
+      assertEquals(5, stacks.size());
+      assertStack(stacks.get(0), frames[0], 100, 1);
+      assertStack(stacks.get(1), frames[1], 100, 2);
+      assertStack(stacks.get(2), frames[3], 100, 4);
+      assertStack(stacks.get(3), frames[2], 50, 3);
+      assertStack(stacks.get(4), ft.name("Filtered"), 10, 5);
+
+      assertEquals(360, tree.getTotal(true));
+      assertEquals(15, tree.getTotal(false));
+   }
+
+   /**
+    * The top stacks are selected by value, and stacks of the same value by their frame
+    * ids, so the selection doesn't depend on the order they were added in; the rest is
+    * added to the Filtered stack
+    */
+   @Test
+   public void testSelectTop()
+   {
+      FrameTable ft = new FrameTable(null);
+      int[] frames = frames(ft);
+      int type = ft.name("T");
+      CallTree tree = build(frames, type);
+
+      List<CallTree.Node> stacks = Main.select(tree, ft, true, 20, 2);
+
+      assertEquals(3, stacks.size());
+      assertStack(stacks.get(0), frames[0], 100, 1);
+      assertStack(stacks.get(1), frames[1], 100, 2);
+      assertStack(stacks.get(2), ft.name("Filtered"), 160, 12);
+
+      assertEquals(360, tree.getTotal(true));
+      assertEquals(15, tree.getTotal(false));
+      assertEquals(3, tree.getStacks().size());
+   }
+
+   /**
+    * The stacks are selected by count as well
+    */
+   @Test
+   public void testSelectCount()
+   {
+      FrameTable ft = new FrameTable(null);
+      int[] frames = frames(ft);
+      int type = ft.name("T");
+      CallTree tree = build(frames, type);
+
+      List<CallTree.Node> stacks = Main.select(tree, ft, false, 3, 1);
+
+      assertEquals(2, stacks.size());
+      assertStack(stacks.get(0), frames[4], 10, 5);
+      assertStack(stacks.get(1), ft.name("Filtered"), 350, 10);
+   }
+
+   private static int[] frames(FrameTable ft)
+   {
+      int[] frames = new int[5];
+      for (int i = 0; i < frames.length; i++)
+      {
+         frames[i] = ft.name("frame" + i);
+      }
+      return frames;
+   }
+
+   /**
+    * Stacks of the same value, added out of the order of their frame ids
+    */
+   private static CallTree build(int[] frames, int type)
+   {
+      CallTree tree = new CallTree();
+      tree.add(new int[] {frames[3]}, type, 100, 4);
+      tree.add(new int[] {frames[1]}, type, 100, 2);
+      tree.add(new int[] {frames[2]}, type, 50, 3);
+      tree.add(new int[] {frames[0]}, type, 100, 1);
+      tree.add(new int[] {frames[4]}, type, 10, 5);
+      return tree;
+   }
+
+   /**
+    * Assert a stack by its first frame, which is the Filtered frame for the Filtered stack
+    */
+   private static void assertStack(CallTree.Node node, int frame, long bytes, long count)
+   {
+      assertEquals(frame, CallTree.path(node)[0]);
+      assertEquals(bytes, node.getSelf(true));
+      assertEquals(count, node.getSelf(false));
+   }
+}
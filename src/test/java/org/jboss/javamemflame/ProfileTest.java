@@ -0,0 +1,140 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Profile tests
+ */
+public class ProfileTest
+{
+   /**
+    * A profile read into another frame table has the same stacks, labels and totals,
+    * also when the ids of the labels differ
+    */
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      FrameTable ft = new FrameTable(null);
+      CallTree tree = build(ft);
+
+      // The labels get other ids than in the written frame table
+      FrameTable other = new FrameTable(null);
+      other.name("java/lang/Thread:.run");
+      other.name("Filtered");
+      CallTree read = Profile.read(ByteBuffer.wrap(write(tree, ft)), other, "test");
+
+      assertNotEquals(ft.name("Filtered"), other.name("Filtered"));
+      assertEquals(stacks(tree, ft), stacks(read, other));
+      assertEquals(tree.getTotal(true), read.getTotal(true));
+      assertEquals(tree.getTotal(false), read.getTotal(false));
+      assertEquals(tree.size(), read.size());
+   }
+
+   /**
+    * The includes are applied when a profile is read, so only the stacks through an
+    * included frame are kept
+    */
+   @Test
+   public void testIncludes() throws Exception
+   {
+      FrameTable ft = new FrameTable(null);
+      byte[] profile = write(build(ft), ft);
+
+      FrameTable other = new FrameTable(Collections.singleton("com/acme"));
+      CallTree read = Profile.read(ByteBuffer.wrap(profile), other, "test");
+
+      Map<String, String> expected = new TreeMap<>();
+      expected.put("java/lang/Thread:.run;com/acme/Service:.handle;byte[]", "100/1");
+      expected.put("java/lang/Thread:.run;com/acme/Service:.handle;java/util/HashMap:.resize;java.util.HashMap$Node[]", "300/2");
+
+      assertEquals(expected, stacks(read, other));
+      assertEquals(400, read.getTotal(true));
+      assertEquals(3, read.getTotal(false));
+   }
+
+   /**
+    * A file that isn't a profile is rejected
+    */
+   @Test
+   public void testMagic()
+   {
+      try
+      {
+         Profile.read(ByteBuffer.wrap(new byte[] {'J', 'F', 'R', 0, 0, 0, 0, 1}), new FrameTable(null), "test");
+         fail();
+      }
+      catch (IOException ioe)
+      {
+         assertEquals("test isn't a profile", ioe.getMessage());
+      }
+   }
+
+   /**
+    * A call tree with stacks through an included package, and stacks that end in a node
+    * with children
+    */
+   private static CallTree build(FrameTable ft)
+   {
+      int run = ft.method("java.lang.Thread", "run");
+      int handle = ft.method("com.acme.Service", "handle");
+      int resize = ft.method("java.util.HashMap", "resize");
+      int work = ft.method("org.example.Worker", "work");
+      int bytes = ft.allocation("[B");
+      int nodes = ft.allocation("[Ljava.util.HashMap$Node;");
+
+      CallTree tree = new CallTree();
+      tree.add(new int[] {run, handle}, bytes, 100, 1);
+      tree.add(new int[] {run, handle, resize}, nodes, 300, 2);
+      tree.add(new int[] {run, work}, bytes, 50, 5);
+      tree.add(new int[] {run, work, resize}, nodes, 20, 1);
+      tree.add(new int[] {run}, bytes, 7, 7);
+      tree.add(new int[0], ft.name("Filtered"), 1000, 10);
+
+      return tree;
+   }
+
+   private static byte[] write(CallTree tree, FrameTable ft) throws IOException
+   {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      Profile.write(os, tree, ft);
+      return os.toByteArray();
+   }
+
+   /**
+    * The stacks of a call tree by their labels
+    */
+   private static Map<String, String> stacks(CallTree tree, FrameTable ft)
+   {
+      Map<String, String> m = new TreeMap<>();
+
+      for (CallTree.Node node : tree.getStacks())
+      {
+         StringBuilder sb = new StringBuilder();
+         for (int id : CallTree.path(node))
+         {
+            if (sb.length() > 0)
+               sb.append(';');
+            sb.append(ft.getLabel(id));
+         }
+
+         m.put(sb.toString(), node.getSelf(true) + "/" + node.getSelf(false));
+      }
+
+      return m;
+   }
+}
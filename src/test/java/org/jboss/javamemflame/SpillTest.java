@@ -0,0 +1,160 @@
+/*
+ * JVM agent to track memory allocations
+ *
+ * Copyright (C) 2019 Jesper Pedersen <jesper.pedersen@comcast.net>
+ */
+package org.jboss.javamemflame;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Spill tests; the same stacks are kept in memory and spilled to several runs, and
+ * the output must be the same
+ */
+public class SpillTest
+{
+   /** The maximum number of nodes of the spilled call tree */
+   private static final int MAX_NODES = 50;
+
+   private Path directory;
+   private FrameTable ft;
+   private CallTree tree;
+   private Spill spill;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      directory = Files.createTempDirectory("javamemflame-test");
+      ft = new FrameTable(null);
+      tree = new CallTree();
+      spill = new Spill(MAX_NODES);
+
+      int[] labels = new int[6];
+      for (int i = 0; i < labels.length; i++)
+      {
+         labels[i] = ft.name("frame" + i);
+      }
+      int[] types = new int[] {ft.name("T1"), ft.name("T2")};
+
+      long before = Stats.RUNS.sum();
+      CallTree spilled = new CallTree();
+      Random random = new Random(42);
+
+      for (int i = 0; i < 2000; i++)
+      {
+         int[] stack = new int[random.nextInt(5)];
+         for (int j = 0; j < stack.length; j++)
+         {
+            stack[j] = labels[random.nextInt(labels.length)];
+         }
+         int type = types[random.nextInt(types.length)];
+
+         // Few distinct values, so there are many ties
+         long bytes = 16 * (1 + random.nextInt(4));
+         long count = 1 + random.nextInt(2);
+
+         tree.add(stack, type, bytes, count);
+         spilled.add(stack, type, bytes, count);
+         spill.check(spilled);
+      }
+
+      spill.write(spilled);
+      assertTrue(Stats.RUNS.sum() - before > 2);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      spill.close();
+
+      for (Path p : Files.newDirectoryStream(directory))
+      {
+         Files.delete(p);
+      }
+      Files.delete(directory);
+   }
+
+   /**
+    * The profile has the same bytes
+    */
+   @Test
+   public void testProfile() throws Exception
+   {
+      Path memory = directory.resolve("memory.jmf");
+      Path runs = directory.resolve("runs.jmf");
+
+      Profile.write(memory, tree, ft);
+      spill.write(runs, ft);
+
+      assertArrayEquals(Files.readAllBytes(memory), Files.readAllBytes(runs));
+   }
+
+   /**
+    * All stacks are written by value, with the same Filtered stack
+    */
+   @Test
+   public void testText() throws Exception
+   {
+      for (boolean size : new boolean[] {true, false})
+      {
+         long cutoff = size ? 48 : 2;
+         Path memory = directory.resolve("memory-" + size + ".txt");
+         Path runs = directory.resolve("runs-" + size + ".txt");
+
+         CallTree copy = new CallTree();
+         copy.merge(tree);
+
+         BufferedWriter writer = TextFile.openFile(memory);
+         for (CallTree.Node node : Main.select(copy, ft, size, cutoff, 0))
+         {
+            TextFile.append(writer, ft, node, node.getSelf(size));
+         }
+         TextFile.closeFile(writer);
+
+         writer = TextFile.openFile(runs);
+         spill.write(writer, ft, size, cutoff);
+         TextFile.closeFile(writer);
+
+         List<String> expected = Files.readAllLines(memory);
+         assertTrue(expected.size() > MAX_NODES);
+         assertTrue(expected.get(expected.size() - 1).startsWith("java;Filtered "));
+         assertEquals(expected, Files.readAllLines(runs));
+      }
+   }
+
+   /**
+    * The same top stacks are selected, in the same order, with the same Filtered stack
+    */
+   @Test
+   public void testTop() throws Exception
+   {
+      for (boolean size : new boolean[] {true, false})
+      {
+         CallTree copy = new CallTree();
+         copy.merge(tree);
+
+         List<CallTree.Node> expected = Main.select(copy, ft, size, 0, 20);
+         List<CallTree.Node> actual = spill.select(new CallTree(), ft, size, 0, 20);
+
+         assertEquals(21, expected.size());
+         assertEquals(expected.size(), actual.size());
+         for (int i = 0; i < expected.size(); i++)
+         {
+            assertArrayEquals(CallTree.path(expected.get(i)), CallTree.path(actual.get(i)));
+            assertEquals(expected.get(i).getSelf(true), actual.get(i).getSelf(true));
+            assertEquals(expected.get(i).getSelf(false), actual.get(i).getSelf(false));
+         }
+      }
+   }
+}